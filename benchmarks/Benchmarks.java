@@ -0,0 +1,496 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Timing runs that are kept apart from Main so they can be run on their own. Every case is run a few times to warm up
+ * the JIT before the measured runs, and reports the time, the bytes it allocated and the garbage collections that
+ * happened while it ran. The PersistentList cases are paired with the same work on ArrayList, HashMap or StringBuilder.
+ * <p>
+ * The arguments are the list sizes to run everything with, 10,000 and 1,000,000 if there are none. Run it with a fixed
+ * heap (e.g. -Xms2g -Xmx2g) so the GC numbers of different runs can be compared.
+ * <p>
+ * It's kept out of src so it isn't part of the library, compile it together with it:
+ * {@code javac -d out src/*.java benchmarks/*.java && java -cp out Benchmarks}.
+ */
+public class Benchmarks {
+    private static final int WARMUPS = 5;
+    private static final int RUNS = 10;
+    private static final int[] DEFAULT_SIZES = {10_000, 1_000_000};
+
+    public static void main(String[] args) {
+        final var sizes = args.length == 0 ? DEFAULT_SIZES : new int[args.length];
+        for (int i = 0; i < args.length; ++i) {
+            sizes[i] = Integer.parseInt(args[i].replace("_", ""));
+        }
+
+        for (final var size : sizes) {
+            System.out.println("===== " + size + " items =====");
+
+            dequeBenchmark(size);
+            addBenchmark(size);
+            lookupBenchmark(size, 1_000_000);
+            localityBenchmark(size, 1_000_000);
+            updateBenchmark(size, 100_000);
+            insertBenchmark(size, 1_000);
+            concatBenchmark(size);
+            subListBenchmark(size, 1_000);
+            sortBenchmark(size);
+            equalsBenchmark(size, 100);
+            hashCodeBenchmark(size, 100);
+            iterationBenchmark(size);
+            mapBenchmark(size);
+            charListBenchmark(size);
+        }
+    }
+
+    /**
+     * Mixed push/pull/put/pop workload, PersistentList used as a deque vs ArrayDeque.
+     */
+    public static void dequeBenchmark(int operationCount) {
+        final var operations = new int[operationCount];
+        final var random = new Random(1);
+        for (int i = 0; i < operationCount; ++i) {
+            // lean towards adding so the deque stays non-empty
+            operations[i] = random.nextInt(5);
+        }
+
+        measure("PersistentList deque", () -> {
+            var deque = new PersistentList<Integer>();
+
+            for (int i = 0; i < operations.length; ++i) {
+                switch (operations[i]) {
+                    case 0, 1 -> deque = deque.push(i);
+                    case 2 -> deque = deque.put(i);
+                    case 3 -> deque = deque.pull();
+                    case 4 -> deque = deque.pop();
+                }
+            }
+
+            return deque.size();
+        });
+
+        measure("ArrayDeque", () -> {
+            final var deque = new ArrayDeque<Integer>();
+
+            for (int i = 0; i < operations.length; ++i) {
+                switch (operations[i]) {
+                    case 0, 1 -> deque.addFirst(i);
+                    case 2 -> deque.addLast(i);
+                    case 3 -> deque.pollFirst();
+                    case 4 -> deque.pollLast();
+                }
+            }
+
+            return deque.size();
+        });
+    }
+
+    /**
+     * Random gets from a list of size items, PersistentList vs ArrayList.
+     */
+    public static void lookupBenchmark(int size, int lookupCount) {
+        final var list = new PersistentList<>(valuesUpTo(size));
+        final var arrayList = new ArrayList<>(list.toList());
+        final var indexes = randomIndexes(lookupCount, size);
+
+        measure("PersistentList get", () -> {
+            long sum = 0;
+            for (final var index : indexes) {
+                sum += list.get(index);
+            }
+            return sum;
+        });
+
+        measure("ArrayList get", () -> {
+            long sum = 0;
+            for (final var index : indexes) {
+                sum += arrayList.get(index);
+            }
+            return sum;
+        });
+    }
+
+    /**
+     * Gets that wander through a list of size items a few places at a time, and ones that jump anywhere, through
+     * PersistentList.get vs a {@link PersistentList.Reader} that remembers its last leaf.
+     */
+    public static void localityBenchmark(int size, int lookupCount) {
+        final var list = new PersistentList<>(valuesUpTo(size));
+        final var walk = new int[lookupCount];
+        final var random = new Random(1);
+        var position = size / 2;
+        for (int i = 0; i < lookupCount; ++i) {
+            position = Math.floorMod(position + random.nextInt(9) - 4, size);
+            walk[i] = position;
+        }
+        final var jumps = randomIndexes(lookupCount, size);
+
+        measure("PersistentList get (walk)", () -> {
+            long sum = 0;
+            for (final var index : walk) {
+                sum += list.get(index);
+            }
+            return sum;
+        });
+
+        measure("Reader get (walk)", () -> {
+            final var reader = list.reader();
+            long sum = 0;
+            for (final var index : walk) {
+                sum += reader.get(index);
+            }
+            return sum;
+        });
+
+        measure("PersistentList get (jumps)", () -> {
+            long sum = 0;
+            for (final var index : jumps) {
+                sum += list.get(index);
+            }
+            return sum;
+        });
+
+        measure("Reader get (jumps)", () -> {
+            final var reader = list.reader();
+            long sum = 0;
+            for (final var index : jumps) {
+                sum += reader.get(index);
+            }
+            return sum;
+        });
+    }
+
+    /**
+     * Random sets on a list of size items, each followed by a get from the new version.
+     */
+    public static void updateBenchmark(int size, int updateCount) {
+        final var initial = new PersistentList<>(valuesUpTo(size));
+        final var indexes = randomIndexes(updateCount, size);
+
+        measure("PersistentList set + get", () -> {
+            var list = initial;
+            long sum = 0;
+            for (final var index : indexes) {
+                list = list.set(index, -index);
+                sum += list.get(size - 1 - index);
+            }
+            return sum;
+        });
+    }
+
+    /**
+     * Appending size items one at a time, PersistentList vs ArrayList.
+     */
+    public static void addBenchmark(int size) {
+        measure("PersistentList add", () -> {
+            var list = new PersistentList<Integer>();
+            for (int i = 0; i < size; ++i) {
+                list = list.add(i);
+            }
+            return list.size();
+        });
+
+        measure("ArrayList add", () -> {
+            final var list = new ArrayList<Integer>();
+            for (int i = 0; i < size; ++i) {
+                list.add(i);
+            }
+            return list.size();
+        });
+    }
+
+    /**
+     * Random inserts into a list of size items. The ArrayList is copied once per run so every run starts from the same
+     * list, the copy is part of its time.
+     */
+    public static void insertBenchmark(int size, int insertCount) {
+        final var initial = new PersistentList<>(valuesUpTo(size));
+        final var arrayList = new ArrayList<>(initial.toList());
+        final var indexes = randomIndexes(insertCount, size);
+
+        measure("PersistentList insert", () -> {
+            var list = initial;
+            for (final var index : indexes) {
+                list = list.add(index, -index);
+            }
+            return list.size();
+        });
+
+        measure("ArrayList insert", () -> {
+            final var list = new ArrayList<>(arrayList);
+            for (final var index : indexes) {
+                list.add(index, -index);
+            }
+            return list.size();
+        });
+    }
+
+    /**
+     * A list of size items appended to itself.
+     */
+    public static void concatBenchmark(int size) {
+        final var list = new PersistentList<>(valuesUpTo(size));
+        final var arrayList = new ArrayList<>(list.toList());
+
+        measure("PersistentList concat", () -> list.concat(list).size());
+
+        measure("ArrayList addAll", () -> {
+            final var result = new ArrayList<>(arrayList);
+            result.addAll(arrayList);
+            return result.size();
+        });
+    }
+
+    /**
+     * Random sub lists of a list of size items, copied out of the ArrayList since a view isn't a list of its own.
+     */
+    public static void subListBenchmark(int size, int subListCount) {
+        final var list = new PersistentList<>(valuesUpTo(size));
+        final var arrayList = new ArrayList<>(list.toList());
+        final var starts = randomIndexes(subListCount, size);
+
+        measure("PersistentList subList", () -> {
+            long sum = 0;
+            for (final var start : starts) {
+                sum += list.subList(start, (size - start) / 2).size();
+            }
+            return sum;
+        });
+
+        measure("ArrayList subList copy", () -> {
+            long sum = 0;
+            for (final var start : starts) {
+                sum += new ArrayList<>(arrayList.subList(start, start + (size - start) / 2)).size();
+            }
+            return sum;
+        });
+    }
+
+    /**
+     * Sorting size shuffled items, into a new list for both.
+     */
+    public static void sortBenchmark(int size) {
+        final var shuffled = new ArrayList<>(new PersistentList<>(valuesUpTo(size)).toList());
+        Collections.shuffle(shuffled, new Random(1));
+        final var list = new PersistentList<>(shuffled);
+
+        measure("PersistentList sort", () -> list.sort(Comparator.naturalOrder()).get(size / 2));
+
+        measure("ArrayList sort", () -> {
+            final var result = new ArrayList<>(shuffled);
+            result.sort(Comparator.naturalOrder());
+            return result.get(size / 2);
+        });
+    }
+
+    /**
+     * Comparing a list of size items with a version of it that has one item swapped for an equal one, which is what
+     * comparing versions of a PersistentList usually is, vs comparing two equal ArrayLists.
+     */
+    public static void equalsBenchmark(int size, int compareCount) {
+        final var values = valuesUpTo(size);
+        final var list = new PersistentList<>(values);
+        final var arrayList = new ArrayList<>(list.toList());
+        final var otherArrayList = new ArrayList<>(arrayList);
+        final var indexes = randomIndexes(compareCount, size);
+
+        measure("PersistentList equals", () -> {
+            long equalCount = 0;
+            for (final var index : indexes) {
+                // a new Integer, so the lists are equal without being made of the same items
+                if (list.equals(list.set(index, Integer.valueOf(values[index].toString())))) ++equalCount;
+            }
+            return equalCount;
+        });
+
+        measure("ArrayList equals", () -> {
+            long equalCount = 0;
+            for (int i = 0; i < compareCount; ++i) {
+                if (arrayList.equals(otherArrayList)) ++equalCount;
+            }
+            return equalCount;
+        });
+    }
+
+    /**
+     * The hash of a new version after a set, vs ArrayList which hashes everything every time.
+     */
+    public static void hashCodeBenchmark(int size, int hashCount) {
+        final var list = new PersistentList<>(valuesUpTo(size));
+        final var arrayList = new ArrayList<>(list.toList());
+        final var indexes = randomIndexes(hashCount, size);
+
+        measure("PersistentList hashCode", () -> {
+            long sum = 0;
+            for (final var index : indexes) {
+                sum += list.set(index, -index).hashCode();
+            }
+            return sum;
+        });
+
+        measure("ArrayList hashCode", () -> {
+            long sum = 0;
+            for (final var index : indexes) {
+                arrayList.set(index, -index);
+                sum += arrayList.hashCode();
+            }
+            return sum;
+        });
+    }
+
+    public static void iterationBenchmark(int size) {
+        final var list = new PersistentList<>(valuesUpTo(size));
+        final var arrayList = new ArrayList<>(list.toList());
+
+        measure("PersistentList iteration", () -> {
+            long sum = 0;
+            for (final var value : list) {
+                sum += value;
+            }
+            return sum;
+        });
+
+        measure("ArrayList iteration", () -> {
+            long sum = 0;
+            for (final var value : arrayList) {
+                sum += value;
+            }
+            return sum;
+        });
+    }
+
+    /**
+     * Putting size keys and then getting all of them, PersistentMap vs HashMap.
+     */
+    public static void mapBenchmark(int size) {
+        final var keys = valuesUpTo(size);
+
+        measure("PersistentMap put + get", () -> {
+            var map = new PersistentMap<Integer, Integer>();
+            for (final var key : keys) {
+                map = map.put(key, -key);
+            }
+
+            long sum = 0;
+            for (final var key : keys) {
+                sum += map.get(key);
+            }
+            return sum;
+        });
+
+        measure("HashMap put + get", () -> {
+            final var map = new HashMap<Integer, Integer>();
+            for (final var key : keys) {
+                map.put(key, -key);
+            }
+
+            long sum = 0;
+            for (final var key : keys) {
+                sum += map.get(key);
+            }
+            return sum;
+        });
+    }
+
+    /**
+     * The characters of a string of size characters with one more appended, MyString vs StringBuilder.
+     */
+    public static void charListBenchmark(int size) {
+        final var builder = new StringBuilder();
+        final var random = new Random(1);
+        for (int i = 0; i < size; ++i) {
+            builder.append((char) ('a' + random.nextInt(26)));
+        }
+        final var string = builder.toString();
+
+        measure("MyString charList", () -> new MyString(string).append("!").charList().size());
+
+        measure("StringBuilder", () -> new StringBuilder(string).append("!").toString().length());
+    }
+
+    private static Integer[] valuesUpTo(int size) {
+        final var values = new Integer[size];
+        for (int i = 0; i < size; ++i) {
+            values[i] = i;
+        }
+        return values;
+    }
+
+    private static int[] randomIndexes(int count, int bound) {
+        final var random = new Random(1);
+        final var result = new int[count];
+        for (int i = 0; i < count; ++i) {
+            result[i] = random.nextInt(bound);
+        }
+        return result;
+    }
+
+    /**
+     * Runs the task {@link #WARMUPS} times without timing it, then prints the average time and allocation of
+     * {@link #RUNS} timed runs and the collections that happened during them. The task returns a value so the JIT can't
+     * throw the work away.
+     */
+    public static void measure(String name, Benchmark task) {
+        long sink = 0;
+
+        for (int i = 0; i < WARMUPS; ++i) {
+            sink += task.run();
+        }
+
+        final var startAllocated = allocatedBytes();
+        final var startCollections = collections();
+        final var startCollectionTime = collectionTime();
+        final var startTime = System.nanoTime();
+        for (int i = 0; i < RUNS; ++i) {
+            sink += task.run();
+        }
+        final var endTime = System.nanoTime();
+        final var allocated = allocatedBytes() - startAllocated;
+
+        System.out.printf("%-32s %12.3f ms %14s/run %4d gcs %6d ms in gc (%d)%n",
+                name + ":",
+                (endTime - startTime) / RUNS / 1_000_000.0,
+                startAllocated < 0 ? "?" : String.format("%.1f KB", allocated / RUNS / 1024.0),
+                collections() - startCollections,
+                collectionTime() - startCollectionTime,
+                sink);
+    }
+
+    /**
+     * @return the bytes the current thread allocated so far, or -1 if the JVM can't tell.
+     */
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+                && threads.isThreadAllocatedMemorySupported()) {
+            return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static long collections() {
+        long result = 0;
+        for (final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result += Math.max(0, collector.getCollectionCount());
+        }
+        return result;
+    }
+
+    private static long collectionTime() {
+        long result = 0;
+        for (final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result += Math.max(0, collector.getCollectionTime());
+        }
+        return result;
+    }
+
+    @FunctionalInterface
+    public interface Benchmark {
+        long run();
+    }
+}
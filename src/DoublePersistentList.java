@@ -0,0 +1,201 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.OptionalDouble;
+import java.util.PrimitiveIterator;
+
+/**
+ * PersistentList of doubles, stored unboxed in double[] leaves. Uses the same branches and balancing as PersistentList.
+ */
+public class DoublePersistentList extends PrimitivePersistentList<Double, DoublePersistentList> {
+    private static final DoubleLeaf EMPTY_LEAF = new DoubleLeaf(new double[0]);
+
+    private DoublePersistentList(PersistentList.Node root, PrimitiveTree.Leaf tail) {
+        super(root, tail);
+    }
+
+    public DoublePersistentList(double[] initialValue) {
+        this(PrimitiveTree.fromLeaf(new DoubleLeaf(Arrays.copyOf(initialValue, initialValue.length))), EMPTY_LEAF);
+    }
+
+    public DoublePersistentList() {
+        this(EMPTY_LEAF, EMPTY_LEAF);
+    }
+
+    DoublePersistentList newList(PersistentList.Node root, PrimitiveTree.Leaf tail) {
+        return new DoublePersistentList(root, tail);
+    }
+
+    PrimitiveTree.Leaf emptyLeaf() {
+        return EMPTY_LEAF;
+    }
+
+    public double get(int index) {
+        final var offset = new int[1];
+        final var leaf = (DoubleLeaf) leafAt(index, offset);
+        return leaf.items[offset[0]];
+    }
+
+    public DoublePersistentList set(int index, double value) {
+        return withReplacement(index, new DoubleLeaf(new double[]{value}));
+    }
+
+    public DoublePersistentList add(int index, double value) {
+        if (index == size()) return add(value);
+
+        return insert(index, new double[]{value});
+    }
+
+    public DoublePersistentList add(double value) {
+        return withTail(((DoubleLeaf) tail).appended(value));
+    }
+
+    public DoublePersistentList insert(int index, double[] values) {
+        return withInsertion(index, new DoubleLeaf(Arrays.copyOf(values, values.length)));
+    }
+
+    public DoublePersistentList concat(double[] values) {
+        return insert(size(), values);
+    }
+
+    public double sum() {
+        double result = 0;
+
+        final var leafIterator = leafIterator();
+        while (leafIterator.hasNext()) {
+            for (final var item : ((DoubleLeaf) leafIterator.next()).items) {
+                result += item;
+            }
+        }
+
+        return result;
+    }
+
+    public OptionalDouble min() {
+        if (size() == 0) return OptionalDouble.empty();
+
+        var result = Double.POSITIVE_INFINITY;
+
+        final var leafIterator = leafIterator();
+        while (leafIterator.hasNext()) {
+            for (final var item : ((DoubleLeaf) leafIterator.next()).items) {
+                result = Math.min(result, item);
+            }
+        }
+
+        return OptionalDouble.of(result);
+    }
+
+    public OptionalDouble max() {
+        if (size() == 0) return OptionalDouble.empty();
+
+        var result = Double.NEGATIVE_INFINITY;
+
+        final var leafIterator = leafIterator();
+        while (leafIterator.hasNext()) {
+            for (final var item : ((DoubleLeaf) leafIterator.next()).items) {
+                result = Math.max(result, item);
+            }
+        }
+
+        return OptionalDouble.of(result);
+    }
+
+    public double[] toArray() {
+        final var result = new double[size()];
+
+        int index = 0;
+        final var leafIterator = leafIterator();
+        while (leafIterator.hasNext()) {
+            final var items = ((DoubleLeaf) leafIterator.next()).items;
+            System.arraycopy(items, 0, result, index, items.length);
+            index += items.length;
+        }
+
+        return result;
+    }
+
+    public PrimitiveIterator.OfDouble iterator() {
+        return new SelfIterator();
+    }
+
+    private static class DoubleLeaf extends PrimitiveTree.Leaf {
+        final double[] items;
+        volatile Integer quickHashCache = null;
+
+        DoubleLeaf(double[] items) {
+            this.items = items;
+        }
+
+        public int itemCount() {
+            return items.length;
+        }
+
+        public int quickHash() {
+            if (quickHashCache != null) return quickHashCache;
+
+            var result = 0;
+            for (final var item : items) {
+                result = 31 * result + Double.hashCode(item);
+            }
+
+            return quickHashCache = result;
+        }
+
+        DoubleLeaf appended(double item) {
+            final var result = Arrays.copyOf(items, items.length + 1);
+            result[items.length] = item;
+            return new DoubleLeaf(result);
+        }
+
+        PrimitiveTree.Leaf slice(int start, int end) {
+            if (start == 0 && end == items.length) return this;
+            if (start == end) return EMPTY_LEAF;
+
+            return new DoubleLeaf(Arrays.copyOfRange(items, start, end));
+        }
+
+        PrimitiveTree.Leaf concatenated(PrimitiveTree.Leaf other) {
+            final var otherItems = ((DoubleLeaf) other).items;
+            if (otherItems.length == 0) return this;
+            if (items.length == 0) return other;
+
+            final var result = Arrays.copyOf(items, items.length + otherItems.length);
+            System.arraycopy(otherItems, 0, result, items.length, otherItems.length);
+            return new DoubleLeaf(result);
+        }
+
+        PrimitiveTree.Leaf withItemFrom(int index, PrimitiveTree.Leaf src, int srcIndex) {
+            final var newItem = ((DoubleLeaf) src).items[srcIndex];
+            if (Double.compare(items[index], newItem) == 0) return this;
+
+            final var result = Arrays.copyOf(items, items.length);
+            result[index] = newItem;
+            return new DoubleLeaf(result);
+        }
+
+        boolean sameItem(int index, PrimitiveTree.Leaf other, int otherIndex) {
+            return Double.compare(items[index], ((DoubleLeaf) other).items[otherIndex]) == 0;
+        }
+    }
+
+    private class SelfIterator implements PrimitiveIterator.OfDouble {
+        private final PrimitiveTree.LeafIterator leafIterator = leafIterator();
+        private double[] currentItems = EMPTY_LEAF.items;
+        private int index = 0;
+
+        public boolean hasNext() {
+            return index < currentItems.length || leafIterator.hasNext();
+        }
+
+        public double nextDouble() {
+            if (index >= currentItems.length) {
+                if (!leafIterator.hasNext()) throw new NoSuchElementException();
+
+                currentItems = ((DoubleLeaf) leafIterator.next()).items;
+                index = 0;
+            }
+
+            return currentItems[index++];
+        }
+    }
+}
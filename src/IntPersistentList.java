@@ -0,0 +1,201 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.OptionalInt;
+import java.util.PrimitiveIterator;
+
+/**
+ * PersistentList of ints, stored unboxed in int[] leaves. Uses the same branches and balancing as PersistentList.
+ */
+public class IntPersistentList extends PrimitivePersistentList<Integer, IntPersistentList> {
+    private static final IntLeaf EMPTY_LEAF = new IntLeaf(new int[0]);
+
+    private IntPersistentList(PersistentList.Node root, PrimitiveTree.Leaf tail) {
+        super(root, tail);
+    }
+
+    public IntPersistentList(int[] initialValue) {
+        this(PrimitiveTree.fromLeaf(new IntLeaf(Arrays.copyOf(initialValue, initialValue.length))), EMPTY_LEAF);
+    }
+
+    public IntPersistentList() {
+        this(EMPTY_LEAF, EMPTY_LEAF);
+    }
+
+    IntPersistentList newList(PersistentList.Node root, PrimitiveTree.Leaf tail) {
+        return new IntPersistentList(root, tail);
+    }
+
+    PrimitiveTree.Leaf emptyLeaf() {
+        return EMPTY_LEAF;
+    }
+
+    public int get(int index) {
+        final var offset = new int[1];
+        final var leaf = (IntLeaf) leafAt(index, offset);
+        return leaf.items[offset[0]];
+    }
+
+    public IntPersistentList set(int index, int value) {
+        return withReplacement(index, new IntLeaf(new int[]{value}));
+    }
+
+    public IntPersistentList add(int index, int value) {
+        if (index == size()) return add(value);
+
+        return insert(index, new int[]{value});
+    }
+
+    public IntPersistentList add(int value) {
+        return withTail(((IntLeaf) tail).appended(value));
+    }
+
+    public IntPersistentList insert(int index, int[] values) {
+        return withInsertion(index, new IntLeaf(Arrays.copyOf(values, values.length)));
+    }
+
+    public IntPersistentList concat(int[] values) {
+        return insert(size(), values);
+    }
+
+    public long sum() {
+        long result = 0;
+
+        final var leafIterator = leafIterator();
+        while (leafIterator.hasNext()) {
+            for (final var item : ((IntLeaf) leafIterator.next()).items) {
+                result += item;
+            }
+        }
+
+        return result;
+    }
+
+    public OptionalInt min() {
+        if (size() == 0) return OptionalInt.empty();
+
+        var result = Integer.MAX_VALUE;
+
+        final var leafIterator = leafIterator();
+        while (leafIterator.hasNext()) {
+            for (final var item : ((IntLeaf) leafIterator.next()).items) {
+                result = Math.min(result, item);
+            }
+        }
+
+        return OptionalInt.of(result);
+    }
+
+    public OptionalInt max() {
+        if (size() == 0) return OptionalInt.empty();
+
+        var result = Integer.MIN_VALUE;
+
+        final var leafIterator = leafIterator();
+        while (leafIterator.hasNext()) {
+            for (final var item : ((IntLeaf) leafIterator.next()).items) {
+                result = Math.max(result, item);
+            }
+        }
+
+        return OptionalInt.of(result);
+    }
+
+    public int[] toArray() {
+        final var result = new int[size()];
+
+        int index = 0;
+        final var leafIterator = leafIterator();
+        while (leafIterator.hasNext()) {
+            final var items = ((IntLeaf) leafIterator.next()).items;
+            System.arraycopy(items, 0, result, index, items.length);
+            index += items.length;
+        }
+
+        return result;
+    }
+
+    public PrimitiveIterator.OfInt iterator() {
+        return new SelfIterator();
+    }
+
+    private static class IntLeaf extends PrimitiveTree.Leaf {
+        final int[] items;
+        volatile Integer quickHashCache = null;
+
+        IntLeaf(int[] items) {
+            this.items = items;
+        }
+
+        public int itemCount() {
+            return items.length;
+        }
+
+        public int quickHash() {
+            if (quickHashCache != null) return quickHashCache;
+
+            var result = 0;
+            for (final var item : items) {
+                result = 31 * result + Integer.hashCode(item);
+            }
+
+            return quickHashCache = result;
+        }
+
+        IntLeaf appended(int item) {
+            final var result = Arrays.copyOf(items, items.length + 1);
+            result[items.length] = item;
+            return new IntLeaf(result);
+        }
+
+        PrimitiveTree.Leaf slice(int start, int end) {
+            if (start == 0 && end == items.length) return this;
+            if (start == end) return EMPTY_LEAF;
+
+            return new IntLeaf(Arrays.copyOfRange(items, start, end));
+        }
+
+        PrimitiveTree.Leaf concatenated(PrimitiveTree.Leaf other) {
+            final var otherItems = ((IntLeaf) other).items;
+            if (otherItems.length == 0) return this;
+            if (items.length == 0) return other;
+
+            final var result = Arrays.copyOf(items, items.length + otherItems.length);
+            System.arraycopy(otherItems, 0, result, items.length, otherItems.length);
+            return new IntLeaf(result);
+        }
+
+        PrimitiveTree.Leaf withItemFrom(int index, PrimitiveTree.Leaf src, int srcIndex) {
+            final var newItem = ((IntLeaf) src).items[srcIndex];
+            if (items[index] == newItem) return this;
+
+            final var result = Arrays.copyOf(items, items.length);
+            result[index] = newItem;
+            return new IntLeaf(result);
+        }
+
+        boolean sameItem(int index, PrimitiveTree.Leaf other, int otherIndex) {
+            return items[index] == ((IntLeaf) other).items[otherIndex];
+        }
+    }
+
+    private class SelfIterator implements PrimitiveIterator.OfInt {
+        private final PrimitiveTree.LeafIterator leafIterator = leafIterator();
+        private int[] currentItems = EMPTY_LEAF.items;
+        private int index = 0;
+
+        public boolean hasNext() {
+            return index < currentItems.length || leafIterator.hasNext();
+        }
+
+        public int nextInt() {
+            if (index >= currentItems.length) {
+                if (!leafIterator.hasNext()) throw new NoSuchElementException();
+
+                currentItems = ((IntLeaf) leafIterator.next()).items;
+                index = 0;
+            }
+
+            return currentItems[index++];
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Turns items into bytes and back, for the formats that store PersistentList items outside of the heap, like
+ * {@link Snapshot}.
+ */
+public interface ItemCodec<T> {
+    /**
+     * @return the number of bytes {@link #write(Object, ByteBuffer)} puts in the buffer for item.
+     */
+    int size(T item);
+
+    void write(T item, ByteBuffer buffer);
+
+    T read(ByteBuffer buffer);
+
+    ItemCodec<Integer> INTEGERS = new ItemCodec<>() {
+        public int size(Integer item) {
+            return Integer.BYTES;
+        }
+
+        public void write(Integer item, ByteBuffer buffer) {
+            buffer.putInt(item);
+        }
+
+        public Integer read(ByteBuffer buffer) {
+            return buffer.getInt();
+        }
+    };
+
+    ItemCodec<Long> LONGS = new ItemCodec<>() {
+        public int size(Long item) {
+            return Long.BYTES;
+        }
+
+        public void write(Long item, ByteBuffer buffer) {
+            buffer.putLong(item);
+        }
+
+        public Long read(ByteBuffer buffer) {
+            return buffer.getLong();
+        }
+    };
+
+    ItemCodec<Double> DOUBLES = new ItemCodec<>() {
+        public int size(Double item) {
+            return Double.BYTES;
+        }
+
+        public void write(Double item, ByteBuffer buffer) {
+            buffer.putDouble(item);
+        }
+
+        public Double read(ByteBuffer buffer) {
+            return buffer.getDouble();
+        }
+    };
+
+    /**
+     * UTF-8 with the length in front, null is written as length -1.
+     */
+    ItemCodec<String> STRINGS = new ItemCodec<>() {
+        public int size(String item) {
+            return Integer.BYTES + (item == null ? 0 : item.getBytes(StandardCharsets.UTF_8).length);
+        }
+
+        public void write(String item, ByteBuffer buffer) {
+            if (item == null) {
+                buffer.putInt(-1);
+                return;
+            }
+
+            final var bytes = item.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+
+        public String read(ByteBuffer buffer) {
+            final var length = buffer.getInt();
+            if (length < 0) return null;
+
+            final var bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+}
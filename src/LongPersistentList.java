@@ -0,0 +1,201 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.OptionalLong;
+import java.util.PrimitiveIterator;
+
+/**
+ * PersistentList of longs, stored unboxed in long[] leaves. Uses the same branches and balancing as PersistentList.
+ */
+public class LongPersistentList extends PrimitivePersistentList<Long, LongPersistentList> {
+    private static final LongLeaf EMPTY_LEAF = new LongLeaf(new long[0]);
+
+    private LongPersistentList(PersistentList.Node root, PrimitiveTree.Leaf tail) {
+        super(root, tail);
+    }
+
+    public LongPersistentList(long[] initialValue) {
+        this(PrimitiveTree.fromLeaf(new LongLeaf(Arrays.copyOf(initialValue, initialValue.length))), EMPTY_LEAF);
+    }
+
+    public LongPersistentList() {
+        this(EMPTY_LEAF, EMPTY_LEAF);
+    }
+
+    LongPersistentList newList(PersistentList.Node root, PrimitiveTree.Leaf tail) {
+        return new LongPersistentList(root, tail);
+    }
+
+    PrimitiveTree.Leaf emptyLeaf() {
+        return EMPTY_LEAF;
+    }
+
+    public long get(int index) {
+        final var offset = new int[1];
+        final var leaf = (LongLeaf) leafAt(index, offset);
+        return leaf.items[offset[0]];
+    }
+
+    public LongPersistentList set(int index, long value) {
+        return withReplacement(index, new LongLeaf(new long[]{value}));
+    }
+
+    public LongPersistentList add(int index, long value) {
+        if (index == size()) return add(value);
+
+        return insert(index, new long[]{value});
+    }
+
+    public LongPersistentList add(long value) {
+        return withTail(((LongLeaf) tail).appended(value));
+    }
+
+    public LongPersistentList insert(int index, long[] values) {
+        return withInsertion(index, new LongLeaf(Arrays.copyOf(values, values.length)));
+    }
+
+    public LongPersistentList concat(long[] values) {
+        return insert(size(), values);
+    }
+
+    public long sum() {
+        long result = 0;
+
+        final var leafIterator = leafIterator();
+        while (leafIterator.hasNext()) {
+            for (final var item : ((LongLeaf) leafIterator.next()).items) {
+                result += item;
+            }
+        }
+
+        return result;
+    }
+
+    public OptionalLong min() {
+        if (size() == 0) return OptionalLong.empty();
+
+        var result = Long.MAX_VALUE;
+
+        final var leafIterator = leafIterator();
+        while (leafIterator.hasNext()) {
+            for (final var item : ((LongLeaf) leafIterator.next()).items) {
+                result = Math.min(result, item);
+            }
+        }
+
+        return OptionalLong.of(result);
+    }
+
+    public OptionalLong max() {
+        if (size() == 0) return OptionalLong.empty();
+
+        var result = Long.MIN_VALUE;
+
+        final var leafIterator = leafIterator();
+        while (leafIterator.hasNext()) {
+            for (final var item : ((LongLeaf) leafIterator.next()).items) {
+                result = Math.max(result, item);
+            }
+        }
+
+        return OptionalLong.of(result);
+    }
+
+    public long[] toArray() {
+        final var result = new long[size()];
+
+        int index = 0;
+        final var leafIterator = leafIterator();
+        while (leafIterator.hasNext()) {
+            final var items = ((LongLeaf) leafIterator.next()).items;
+            System.arraycopy(items, 0, result, index, items.length);
+            index += items.length;
+        }
+
+        return result;
+    }
+
+    public PrimitiveIterator.OfLong iterator() {
+        return new SelfIterator();
+    }
+
+    private static class LongLeaf extends PrimitiveTree.Leaf {
+        final long[] items;
+        volatile Integer quickHashCache = null;
+
+        LongLeaf(long[] items) {
+            this.items = items;
+        }
+
+        public int itemCount() {
+            return items.length;
+        }
+
+        public int quickHash() {
+            if (quickHashCache != null) return quickHashCache;
+
+            var result = 0;
+            for (final var item : items) {
+                result = 31 * result + Long.hashCode(item);
+            }
+
+            return quickHashCache = result;
+        }
+
+        LongLeaf appended(long item) {
+            final var result = Arrays.copyOf(items, items.length + 1);
+            result[items.length] = item;
+            return new LongLeaf(result);
+        }
+
+        PrimitiveTree.Leaf slice(int start, int end) {
+            if (start == 0 && end == items.length) return this;
+            if (start == end) return EMPTY_LEAF;
+
+            return new LongLeaf(Arrays.copyOfRange(items, start, end));
+        }
+
+        PrimitiveTree.Leaf concatenated(PrimitiveTree.Leaf other) {
+            final var otherItems = ((LongLeaf) other).items;
+            if (otherItems.length == 0) return this;
+            if (items.length == 0) return other;
+
+            final var result = Arrays.copyOf(items, items.length + otherItems.length);
+            System.arraycopy(otherItems, 0, result, items.length, otherItems.length);
+            return new LongLeaf(result);
+        }
+
+        PrimitiveTree.Leaf withItemFrom(int index, PrimitiveTree.Leaf src, int srcIndex) {
+            final var newItem = ((LongLeaf) src).items[srcIndex];
+            if (items[index] == newItem) return this;
+
+            final var result = Arrays.copyOf(items, items.length);
+            result[index] = newItem;
+            return new LongLeaf(result);
+        }
+
+        boolean sameItem(int index, PrimitiveTree.Leaf other, int otherIndex) {
+            return items[index] == ((LongLeaf) other).items[otherIndex];
+        }
+    }
+
+    private class SelfIterator implements PrimitiveIterator.OfLong {
+        private final PrimitiveTree.LeafIterator leafIterator = leafIterator();
+        private long[] currentItems = EMPTY_LEAF.items;
+        private int index = 0;
+
+        public boolean hasNext() {
+            return index < currentItems.length || leafIterator.hasNext();
+        }
+
+        public long nextLong() {
+            if (index >= currentItems.length) {
+                if (!leafIterator.hasNext()) throw new NoSuchElementException();
+
+                currentItems = ((LongLeaf) leafIterator.next()).items;
+                index = 0;
+            }
+
+            return currentItems[index++];
+        }
+    }
+}
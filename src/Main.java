@@ -218,6 +218,7 @@ public class Main {
 
         final var alTimes = new ArrayList<Double>();
         final var plTimes = new ArrayList<Double>();
+        final var ptTimes = new ArrayList<Double>();
         final var iterations = 10;
         final var count = 100_000;
 
@@ -241,6 +242,16 @@ public class Main {
             final var plEndTime = System.currentTimeMillis();
             plTimes.add((double) (plEndTime - plStartTime));
 
+            final var ptStartTime = System.currentTimeMillis();
+            final var ptAddTest = new PersistentList<Integer>().transientCopy();
+            for (int i = 0; i < count; ++i) {
+                ptAddTest.add(i);
+            }
+            final var ptResult = ptAddTest.persistent();
+            final var ptEndTime = System.currentTimeMillis();
+            ptTimes.add((double) (ptEndTime - ptStartTime));
+            if (ptResult.size() != count) throw new IllegalStateException();
+
 //            if (j == iterations - 1)
 //                System.out.println(plAddTest);
         }
@@ -248,6 +259,7 @@ public class Main {
 
         System.out.println("p-list time:" + average(plTimes));
         System.out.println("a-list time:" + average(alTimes));
+        System.out.println("p-list transient time:" + average(ptTimes));
 
         final var randomList = new PersistentList<>(getRandomArray(20, 50));
         final var sortedList = randomList.sort((a, b) -> a - b);
@@ -292,6 +304,12 @@ public class Main {
 
             System.out.println("PL Sorting Time: " + (endTime - startTime));
 
+            startTime = System.currentTimeMillis();
+            bigRandomList.parallelSort(Comparator.comparingInt(a -> a));
+            endTime = System.currentTimeMillis();
+
+            System.out.println("PL Parallel Sorting Time: " + (endTime - startTime));
+
             final var randArr = Arrays.copyOf(bigRandomArray, bigRandomArray.length);
             startTime = System.currentTimeMillis();
             Arrays.sort(randArr);
@@ -0,0 +1,413 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * A read-mostly persistent list over a file of items written by {@link #write(Path, Iterable, ItemCodec)}. Opening the
+ * file only maps it, the items are decoded from the mapping when they're read, so a list of any size opens instantly and
+ * costs next to nothing on the heap.
+ * <p>
+ * Versions are PersistentList trees, built with its branches, leaves and its join and split, whose leaves can also be
+ * ranges of the file's items ({@link PersistentList.Segment}s). An edit splits the ranges around it, which is O(1)
+ * since a range is just two indexes, and puts the new items in regular leaves, so every version only keeps what was
+ * changed on the heap and every edit is O(log of the number of edits) no matter how big the file is.
+ * <p>
+ * It only has the basic list operations below. Everything else PersistentList can do (reverse, sort, diff, snapshots and
+ * so on) needs {@link #toPersistentList()}, which copies every item onto the heap.
+ */
+public class MappedPersistentList<T> implements Iterable<T> {
+    private static final int MAGIC = 0x504C4D50; // "PLMP"
+    private static final int FORMAT_VERSION = 1;
+    /**
+     * magic, format version, item count, padding and the position of the offset table.
+     */
+    private static final int HEADER_SIZE = 4 * Integer.BYTES + Long.BYTES;
+    /**
+     * A single mapping can't be bigger than 2GB, so the file is mapped in windows of this size.
+     */
+    private static final int WINDOW_SHIFT = 30;
+    private static final long WINDOW_SIZE = 1L << WINDOW_SHIFT;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Base<T> base;
+    private final PersistentList.Node root;
+    private volatile Integer hashCache = null;
+
+    private MappedPersistentList(Base<T> base, PersistentList.Node root) {
+        this.base = base;
+        this.root = root;
+    }
+
+    // ==================== Files ========================
+
+    /**
+     * Writes items into file in the format {@link #open(Path, ItemCodec)} reads: a header, the encoded items one after
+     * the other and a table with the position of every item, which is what makes reading any item O(1).
+     */
+    public static <T> void write(Path file, Iterable<? extends T> items, ItemCodec<T> codec) throws IOException {
+        final var offsetsFile = Files.createTempFile("offsets", ".bin");
+
+        try (final var channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             final var offsets = FileChannel.open(offsetsFile,
+                     StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+            // the offsets go to their own file until the size of the data is known
+            final var data = ByteBuffer.allocate(BUFFER_SIZE);
+            final var offsetBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+            var position = (long) HEADER_SIZE;
+            var count = 0L;
+
+            data.put(new byte[HEADER_SIZE]); // written at the end, once the count is known
+            for (final var item : items) {
+                final var size = codec.size(item);
+
+                if (!offsetBuffer.hasRemaining()) flush(offsetBuffer, offsets);
+                offsetBuffer.putLong(position);
+
+                if (data.remaining() < size) flush(data, channel);
+                if (data.capacity() < size) {
+                    // too big for the buffer, write it on its own
+                    final var single = ByteBuffer.allocate(size);
+                    codec.write(item, single);
+                    flush(single, channel);
+                } else {
+                    codec.write(item, data);
+                }
+
+                position += size;
+                ++count;
+            }
+            if (count > Integer.MAX_VALUE) throw new IllegalArgumentException("too many items: " + count);
+
+            if (!offsetBuffer.hasRemaining()) flush(offsetBuffer, offsets);
+            offsetBuffer.putLong(position);
+            flush(offsetBuffer, offsets);
+
+            // the table is read a long at a time, so it has to start at a multiple of 8 to never cross a window
+            final var tableStart = (position + Long.BYTES - 1) / Long.BYTES * Long.BYTES;
+            final var padding = (int) (tableStart - position);
+            // the buffer doesn't start at a multiple of 8 once it's been flushed, so the padding might not fit
+            if (data.remaining() < padding) flush(data, channel);
+            data.put(new byte[padding]);
+            flush(data, channel);
+
+            final var tableSize = offsets.size();
+            for (long copied = 0; copied < tableSize; ) {
+                copied += channel.transferFrom(offsets.position(copied), tableStart + copied, tableSize - copied);
+            }
+
+            final var header = ByteBuffer.allocate(HEADER_SIZE)
+                    .putInt(MAGIC)
+                    .putInt(FORMAT_VERSION)
+                    .putInt((int) count)
+                    .putInt(0)
+                    .putLong(tableStart)
+                    .flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Maps file, which has to be written by {@link #write(Path, Iterable, ItemCodec)} with the same kind of codec. The
+     * file shouldn't change while any list made from it is in use.
+     */
+    public static <T> MappedPersistentList<T> open(Path file, ItemCodec<T> codec) throws IOException {
+        final var base = new Base<>(file, codec);
+        return new MappedPersistentList<>(base, base.count == 0 ? PersistentList.EMPTY_LEAF : new Range(base, 0, base.count));
+    }
+
+    // ==================== List ========================
+
+    public int size() {
+        return root.itemCount();
+    }
+
+    public T get(int index) {
+        PersistentList.indexCheck(index, size());
+
+        PersistentList.Node n = root;
+        while (n instanceof PersistentList.Branch b) {
+            if (index < b.left.itemCount()) {
+                n = b.left;
+            } else {
+                index -= b.left.itemCount();
+                n = b.right;
+            }
+        }
+
+        if (n instanceof Range r) {
+            return base.item(r.start + index);
+        } else {
+            return (T) ((PersistentList.Leaf) n).items[index];
+        }
+    }
+
+    public MappedPersistentList<T> set(int index, T value) {
+        PersistentList.indexCheck(index, size());
+
+        return withRoot(withItems(PersistentList.prefixOf(root, index), new Object[]{value}, PersistentList.suffixOf(root, index + 1)));
+    }
+
+    public MappedPersistentList<T> add(T value) {
+        return insert(size(), (T[]) new Object[]{value});
+    }
+
+    public MappedPersistentList<T> add(int index, T value) {
+        return insert(index, (T[]) new Object[]{value});
+    }
+
+    public MappedPersistentList<T> insert(int index, T[] values) {
+        PersistentList.indexCheck(index, size() + 1);
+        if (values.length == 0) return this;
+
+        return withRoot(withItems(
+                PersistentList.prefixOf(root, index),
+                Arrays.copyOf(values, values.length, Object[].class),
+                PersistentList.suffixOf(root, index)));
+    }
+
+    public MappedPersistentList<T> remove(int index, int length) {
+        if (length <= 0) return this;
+
+        PersistentList.indexCheck(index, size());
+
+        final var end = index + length;
+        if (end > size()) throw new IndexOutOfBoundsException(end);
+
+        return withRoot(PersistentList.joinedAtLeaves(PersistentList.prefixOf(root, index), PersistentList.suffixOf(root, end)));
+    }
+
+    public MappedPersistentList<T> remove(int index) {
+        return remove(index, 1);
+    }
+
+    public MappedPersistentList<T> subList(int start, int length) {
+        if (length <= 0) return withRoot(PersistentList.EMPTY_LEAF);
+        if (start == 0 && length == size()) return this;
+
+        PersistentList.indexCheck(start, size());
+
+        final var end = start + length;
+        if (end > size()) throw new IndexOutOfBoundsException(end);
+
+        return withRoot(PersistentList.suffixOf(PersistentList.prefixOf(root, end), start));
+    }
+
+    /**
+     * @return the items as a regular, on heap PersistentList.
+     */
+    public PersistentList<T> toPersistentList() {
+        return new PersistentList<>(this);
+    }
+
+    public Iterator<T> iterator() {
+        return new SelfIterator();
+    }
+
+    /**
+     * Same value as {@link java.util.List#hashCode()}, put together from the hashes cached in the nodes like
+     * PersistentList's. A range of the file decodes its items the first time it's hashed.
+     */
+    @Override
+    public int hashCode() {
+        if (hashCache != null) return hashCache;
+
+        return hashCache = PersistentList.powerOf31(size()) + root.quickHash();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (obj instanceof MappedPersistentList<?> other) {
+            if (root == other.root) return true;
+            if (size() != other.size()) return false;
+            if (hashCode() != other.hashCode()) return false;
+
+            final var iteratorA = iterator();
+            final var iteratorB = other.iterator();
+            while (iteratorA.hasNext()) {
+                if (!Objects.equals(iteratorA.next(), iteratorB.next())) return false;
+            }
+            return true;
+        } else return false;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("[ ");
+        boolean first = true;
+
+        for (final var item : this) {
+            if (!first) {
+                result.append(", ");
+            }
+
+            if (item != null) {
+                result.append(item);
+            }
+            first = false;
+        }
+        result.append(" ]");
+
+        return result.toString();
+    }
+
+    private MappedPersistentList<T> withRoot(PersistentList.Node newRoot) {
+        return newRoot == root ? this : new MappedPersistentList<>(base, newRoot);
+    }
+
+    /**
+     * @return before, items and after joined together. Items that fit into the leaves next to them are merged into them,
+     * so adding items one at a time fills up leaves instead of making a node per item.
+     */
+    private static PersistentList.Node withItems(PersistentList.Node before, Object[] items, PersistentList.Node after) {
+        return PersistentList.joinedAtLeaves(PersistentList.joinedAtLeaves(before, PersistentList.fromArray(items)), after);
+    }
+
+    // ======================== Inner Classes ===============================
+    /**
+     * The items of the file in [start, end).
+     */
+    private static class Range implements PersistentList.Segment {
+        final Base<?> base;
+        final int start;
+        final int end;
+        volatile Integer quickHashCache = null;
+
+        Range(Base<?> base, int start, int end) {
+            this.base = base;
+            this.start = start;
+            this.end = end;
+        }
+
+        public PersistentList.Node sliced(int start, int end) {
+            return new Range(base, this.start + start, this.start + end);
+        }
+
+        public int itemCount() {
+            return end - start;
+        }
+
+        public int quickHash() {
+            if (quickHashCache != null) return quickHashCache;
+
+            var result = 0;
+            for (int i = start; i < end; ++i) {
+                result = 31 * result + PersistentList.hashCodeOf(base.item(i));
+            }
+
+            return quickHashCache = result;
+        }
+    }
+
+    /**
+     * The mapped file. Item i is the bytes between the i-th and i+1-th entries of the offset table.
+     */
+    private static class Base<T> {
+        final ItemCodec<T> codec;
+        final int count;
+        final long tableStart;
+        final MappedByteBuffer[] windows;
+
+        Base(Path file, ItemCodec<T> codec) throws IOException {
+            this.codec = codec;
+
+            try (final var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                final var size = channel.size();
+                if (size < HEADER_SIZE) throw new IOException("not a mapped PersistentList: " + file);
+
+                windows = new MappedByteBuffer[(int) ((size + WINDOW_SIZE - 1) >>> WINDOW_SHIFT)];
+                for (int i = 0; i < windows.length; ++i) {
+                    final var start = (long) i << WINDOW_SHIFT;
+                    windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start));
+                }
+            }
+
+            final var header = windows[0];
+            if (header.getInt(0) != MAGIC) throw new IOException("not a mapped PersistentList: " + file);
+            final var formatVersion = header.getInt(Integer.BYTES);
+            if (formatVersion != FORMAT_VERSION) throw new IOException("unknown format version " + formatVersion);
+
+            count = header.getInt(2 * Integer.BYTES);
+            tableStart = header.getLong(4 * Integer.BYTES);
+        }
+
+        T item(int index) {
+            final var start = offsetAt(index);
+            final var length = (int) (offsetAt(index + 1) - start);
+            final var window = windows[(int) (start >>> WINDOW_SHIFT)];
+            final var inWindow = (int) (start & (WINDOW_SIZE - 1));
+
+            if (inWindow + length <= window.limit()) {
+                return codec.read(window.slice(inWindow, length));
+            }
+
+            // the item is split between two windows
+            final var bytes = ByteBuffer.allocate(length);
+            bytes.put(window.slice(inWindow, window.limit() - inWindow));
+            bytes.put(windows[(int) (start >>> WINDOW_SHIFT) + 1].slice(0, bytes.remaining()));
+            return codec.read(bytes.flip());
+        }
+
+        private long offsetAt(int index) {
+            final var position = tableStart + (long) index * Long.BYTES;
+            return windows[(int) (position >>> WINDOW_SHIFT)].getLong((int) (position & (WINDOW_SIZE - 1)));
+        }
+    }
+
+    private class SelfIterator implements Iterator<T> {
+        /**
+         * The nodes left to visit, next one on top.
+         */
+        private final ArrayList<PersistentList.Node> pending = new ArrayList<>();
+        private PersistentList.Node current = null;
+        private int index = 0;
+
+        SelfIterator() {
+            if (root.itemCount() > 0) pending.add(root);
+        }
+
+        public boolean hasNext() {
+            return (current != null && index < current.itemCount()) || !pending.isEmpty();
+        }
+
+        public T next() {
+            if (current == null || index >= current.itemCount()) {
+                if (pending.isEmpty()) throw new NoSuchElementException();
+
+                var n = pending.remove(pending.size() - 1);
+                while (n instanceof PersistentList.Branch b) {
+                    pending.add(b.right);
+                    n = b.left;
+                }
+                current = n;
+                index = 0;
+            }
+
+            if (current instanceof Range r) {
+                return base.item(r.start + index++);
+            } else {
+                return (T) ((PersistentList.Leaf) current).items[index++];
+            }
+        }
+    }
+}
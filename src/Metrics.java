@@ -0,0 +1,149 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Counters for what the persistent collections do inside, for finding out why a workload is slow. They're off unless
+ * the JVM is started with -Dpersistent.metrics=true, and since {@link #ENABLED} is a constant the JIT drops every
+ * counter when they're off, so they cost nothing then.
+ * <p>
+ * Expensive operations also emit JFR events (category "Persistent Collections") while metrics are on, which a JFR
+ * recording picks up like any other event.
+ */
+public final class Metrics {
+    public static final boolean ENABLED = Boolean.getBoolean("persistent.metrics");
+
+    static final LongAdder leavesCreated = new LongAdder();
+    static final LongAdder branchesCreated = new LongAdder();
+    static final LongAdder rotations = new LongAdder();
+    /**
+     * Times {@link PersistentList#shallowlyBalanced(PersistentList.Node)} gave up because it kept rotating, which means
+     * the balancing has a bug.
+     */
+    static final LongAdder balancingLimitHits = new LongAdder();
+    static final LongAdder hashCacheHits = new LongAdder();
+    static final LongAdder hashCacheMisses = new LongAdder();
+    static final LongAdder reverseCacheHits = new LongAdder();
+    static final LongAdder reverseCacheMisses = new LongAdder();
+    static final LongAdder lookups = new LongAdder();
+    /**
+     * Nodes passed on the way down to an item, a step through a wide index counts as one.
+     */
+    static final LongAdder lookupSteps = new LongAdder();
+    static final LongAccumulator maxLookupSteps = new LongAccumulator(Math::max, 0);
+    static final LongAdder mapLookups = new LongAdder();
+    static final LongAdder mapProbes = new LongAdder();
+    static final LongAccumulator maxMapProbes = new LongAccumulator(Math::max, 0);
+
+    private Metrics() {
+    }
+
+    /**
+     * @return the current value of every counter by name, in a fixed order. The averages are rounded down.
+     */
+    public static Map<String, Long> snapshot() {
+        final var result = new LinkedHashMap<String, Long>();
+
+        result.put("list.leavesCreated", leavesCreated.sum());
+        result.put("list.branchesCreated", branchesCreated.sum());
+        result.put("list.rotations", rotations.sum());
+        result.put("list.balancingLimitHits", balancingLimitHits.sum());
+        result.put("list.equalityCacheHits", PersistentList.equalityCacheHits());
+        result.put("list.equalityCacheMisses", PersistentList.equalityCacheMisses());
+        result.put("list.hashCacheHits", hashCacheHits.sum());
+        result.put("list.hashCacheMisses", hashCacheMisses.sum());
+        result.put("list.reverseCacheHits", reverseCacheHits.sum());
+        result.put("list.reverseCacheMisses", reverseCacheMisses.sum());
+        result.put("list.lookups", lookups.sum());
+        result.put("list.averageLookupDepth", average(lookupSteps, lookups));
+        result.put("list.maxLookupDepth", maxLookupSteps.get());
+        result.put("map.lookups", mapLookups.sum());
+        result.put("map.averageProbeLength", average(mapProbes, mapLookups));
+        result.put("map.maxProbeLength", maxMapProbes.get());
+
+        return result;
+    }
+
+    /**
+     * Sets every counter back to 0, except the equality cache's which belong to {@link PersistentList}.
+     */
+    public static void reset() {
+        for (final var adder : new LongAdder[]{
+                leavesCreated, branchesCreated, rotations, balancingLimitHits, hashCacheHits, hashCacheMisses,
+                reverseCacheHits, reverseCacheMisses, lookups, lookupSteps, mapLookups, mapProbes}) {
+            adder.reset();
+        }
+        maxLookupSteps.reset();
+        maxMapProbes.reset();
+    }
+
+    private static long average(LongAdder total, LongAdder count) {
+        final var n = count.sum();
+        return n == 0 ? 0 : total.sum() / n;
+    }
+
+    static void lookup(int steps) {
+        lookups.increment();
+        lookupSteps.add(steps);
+        maxLookupSteps.accumulate(steps);
+    }
+
+    static void mapLookup(int probes) {
+        mapLookups.increment();
+        mapProbes.add(probes);
+        maxMapProbes.accumulate(probes);
+    }
+
+    // ==================== Events ========================
+
+    /**
+     * @return a started event from factory, or null if metrics are off. Hand it to {@link #end(OperationEvent, int)}
+     * when the operation is done.
+     */
+    static <E extends OperationEvent> E begin(Supplier<E> factory) {
+        if (!ENABLED) return null;
+
+        final var event = factory.get();
+        event.begin();
+        return event;
+    }
+
+    static void end(OperationEvent event, int itemCount) {
+        if (event == null) return;
+
+        event.itemCount = itemCount;
+        event.commit();
+    }
+
+    @Category("Persistent Collections")
+    abstract static class OperationEvent extends Event {
+        @Label("Item Count")
+        int itemCount;
+    }
+
+    @Name("persistent.Sort")
+    @Label("PersistentList Sort")
+    static class SortEvent extends OperationEvent {
+    }
+
+    /**
+     * Emitted when a reversed list's items are put into a tree in their actual order, the only part of reversing that
+     * isn't O(1).
+     */
+    @Name("persistent.Reverse")
+    @Label("PersistentList Reverse")
+    static class ReverseEvent extends OperationEvent {
+    }
+
+    @Name("persistent.Realloc")
+    @Label("PersistentMap Realloc")
+    static class ReallocEvent extends OperationEvent {
+    }
+}
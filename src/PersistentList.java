@@ -1,41 +1,107 @@
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 // TODO node iterator
 // TODO default Comparator
 // TODO default sort
-// TODO default isSorted status with cache
-// FOR NEXT TIME build in clever reverse mechanism
 
 
 public class PersistentList<T> implements Iterable<T> {
     private static final int LEAF_SIZE = 32;
     private static final Object[] EMPTY_ARRAY = new Object[0];
-    private static final Leaf EMPTY_LEAF = new Leaf(EMPTY_ARRAY);
+    /*package*/ static final Leaf EMPTY_LEAF = new Leaf(EMPTY_ARRAY);
+    /**
+     * Subtrees with fewer items than this are sorted or merged on the current thread by the parallel sort.
+     */
+    private static final int PARALLEL_THRESHOLD = 8192;
 
     Object identifier() {
         return root;
     }
 
+    /**
+     * Items pushed before the root. Pushing only copies this array and pushes it into the tree as a leaf once it's full.
+     */
+    private Object[] head;
     private Node root;
+    /**
+     * Items appended after the root. Appending only copies this array and pushes it into the tree as a leaf once it's full.
+     */
+    private Object[] tail;
+    private volatile Node treeCache = null;
+    /**
+     * When set the list's items are head, root and tail read backwards. This is what makes {@link #reverse()} O(1), every
+     * other method maps its indexes onto the stored order instead of reversing anything.
+     */
+    private final boolean reversed;
 
-    /*package*/ Node root() {
+    /*package*/ Object[] storedHead() {
+        return head;
+    }
+
+    /*package*/ Node storedRoot() {
         return root;
     }
 
+    /*package*/ Object[] storedTail() {
+        return tail;
+    }
+
+    /*package*/ boolean isReversed() {
+        return reversed;
+    }
+
+    /**
+     * Puts a list back together from what {@link #storedHead()}, {@link #storedRoot()}, {@link #storedTail()} and
+     * {@link #isReversed()} returned.
+     */
+    /*package*/ static <T> PersistentList<T> fromStored(Object[] head, Node root, Object[] tail, boolean reversed) {
+        return new PersistentList<>(head, root, tail, reversed);
+    }
+
     /**
-     * stores the root nodes of known equal or non-equal PersistentLists. It stores the root nodes because the equality of Node is identity based, not value based.
+     * {@link #tree()} with its items in the opposite order. Only made when something needs the items of a reversed list
+     * in their actual order as one node, see {@link #orientedTree(boolean)}. Null until then, so versions that are never
+     * reversed don't pay for it.
      */
-    private transient final Map<Object, Boolean> equalityCache = Collections.synchronizedMap(new WeakHashMap<>());
-    private transient volatile WeakReference<Node> reverseCache = new WeakReference<>(null);
-    private transient final Object reverseCacheLock = new Object();
+    private transient volatile WeakReference<Node> reverseCache = null;
     private volatile Integer hashCache = null;
-    private transient final Object hashCacheLock = new Object();
+    /**
+     * Lookups done on this instance, see {@link #WIDE_INDEX_AFTER_LOOKUPS}.
+     */
+    private transient int lookups = 0;
 
     private PersistentList(Node root) {
+        this(EMPTY_ARRAY, root, EMPTY_ARRAY);
+    }
+
+    private PersistentList(Object[] head, Node root, Object[] tail) {
+        this(head, root, tail, false);
+    }
+
+    private PersistentList(Object[] head, Node root, Object[] tail, boolean reversed) {
+        nullCheck(head);
         nullCheck(root);
+        nullCheck(tail);
+        this.head = head;
         this.root = root;
+        this.tail = tail;
+        this.reversed = reversed;
     }
 
     public PersistentList(T[] initialValue) {
@@ -73,39 +139,46 @@ public class PersistentList<T> implements Iterable<T> {
         return result.toString();
     }
 
+    /**
+     * Same value as {@link List#hashCode()}. It's put together from the hashes cached in the nodes, so a new version only
+     * has to hash the nodes on the path that changed.
+     */
     @Override
     public int hashCode() {
-        if (hashCache != null) return hashCache;
-
-        synchronized (hashCacheLock) {
-            if (hashCache == null) {
-                var hash = 0;
-
-                for (final var item : this) {
-                    hash = Objects.hash(hash, item);
-                }
-
-                hashCache = hash;
-            }
+        if (hashCache != null) {
+            if (Metrics.ENABLED) Metrics.hashCacheHits.increment();
+            return hashCache;
+        }
+        if (Metrics.ENABLED) Metrics.hashCacheMisses.increment();
+
+        // no lock, the node hashes are cached so two threads doing this at once only repeat a few multiplications
+        int hash;
+        if (reversed) {
+            hash = reversedOrderedHash(tail);
+            hash = hash * powerOf31(root.itemCount()) + reversedHashOf(root);
+            hash = hash * powerOf31(head.length) + reversedOrderedHash(head);
+        } else {
+            hash = orderedHash(head);
+            hash = hash * powerOf31(root.itemCount()) + root.quickHash();
+            hash = hash * powerOf31(tail.length) + orderedHash(tail);
         }
 
-        return hashCache;
+        return hashCache = powerOf31(size()) + hash;
     }
 
     @Override
     public boolean equals(Object obj) {
         if (this == obj) return true; // same instance
         if (obj instanceof PersistentList<?> other) {
+            // Check hashCodes
+            if (hashCode() != other.hashCode()) return false;
+
             // check the cache
             final var fromCache = checkEqualityFromCache(other);
             if (fromCache != null) {
                 return fromCache;
             }
 
-            // Check hashCodes
-            if (root.quickHash() != other.root.quickHash()) return false;
-            if (hashCode() != other.hashCode()) return false;
-
             if (fullCheckEquals(other)) {
                 consolidateInnards(other);
                 return true;
@@ -114,11 +187,21 @@ public class PersistentList<T> implements Iterable<T> {
     }
 
     private boolean fullCheckEquals(PersistentList<?> other) {
-        if (root == other.root) return true;
+        final var sameDirection = reversed == other.reversed;
+        if (sameDirection && head == other.head && root == other.root && tail == other.tail) return true;
         if (size() != other.size()) return false;
         if (size() == 0 && other.size() == 0) return true;
 
-        if (nodesAreEqual(root, other.root)) {
+        final boolean equal;
+        if (!sameDirection) {
+            equal = nodesAreMirrored(tree(), other.tree());
+        } else if (root == other.root) {
+            equal = Arrays.equals(head, other.head) && Arrays.equals(tail, other.tail);
+        } else {
+            equal = nodesAreEqual(tree(), other.tree());
+        }
+
+        if (equal) {
             // add to cache
             storeEqualityInCache(other, true);
             return true;
@@ -130,21 +213,28 @@ public class PersistentList<T> implements Iterable<T> {
     }
 
     private Boolean checkEqualityFromCache(PersistentList<?> other) {
-        final var fromLocal = equalityCache.get(other.root);
-        if (fromLocal == null) return other.equalityCache.get(root);
-        return fromLocal;
+        return EQUALITY_CACHE.get(this, other);
     }
 
     private void storeEqualityInCache(PersistentList<?> other, boolean equality) {
-        equalityCache.put(other.identifier(), equality);
+        EQUALITY_CACHE.put(this, other, equality);
     }
 
     /**
      * ~ (!!! should only be called if a.equals(b) !!!) ~
      */
     private void consolidateInnards(PersistentList<?> other) {
-        assert Objects.equals(this, other);
-        if (root != other.root) {
+        if (reversed != other.reversed) {
+            // the innards are stored in opposite orders, only the hash can be shared
+            if (hashCache == null) hashCache = other.hashCache;
+            else if (other.hashCache == null) other.hashCache = hashCache;
+            return;
+        }
+
+        // only the root is swapped, it's a single write so a thread reading the other list at the same time sees either
+        // root, and both hold the same items. Swapping head and tail too would take several writes that a reader could
+        // see half of, so lists whose head or tail differ keep their innards.
+        if (root != other.root && sameItemsArray(head, other.head) && sameItemsArray(tail, other.tail)) {
             if (root instanceof Branch ab && ab.quickHashCache != null) {
                 other.root = root;
             } else {
@@ -161,27 +251,75 @@ public class PersistentList<T> implements Iterable<T> {
         }
 
         // TODO fix cache loss problem, you know what I'm talking about, assuming you are me, if not, you probably don't know what I'm talking about.
-        if (reverseCache.get() == null) {
-            if (other.reverseCache.get() != null) {
+        if (cachedReverse() == null) {
+            if (other.cachedReverse() != null) {
                 reverseCache = other.reverseCache;
             }
-        } else if (other.reverseCache.get() == null) {
+        } else if (other.cachedReverse() == null) {
             other.reverseCache = reverseCache;
         }
     }
 
+    private static boolean sameItemsArray(Object[] a, Object[] b) {
+        return a == b || (a.length == 0 && b.length == 0);
+    }
+
     public Iterator<T> iterator() {
-        return new SelfIterator();
+        return reversed ? new Cursor(0) : new SelfIterator();
+    }
+
+    public Cursor cursor() {
+        return new Cursor(0);
+    }
+
+    /**
+     * @return a cursor placed so its first call to next() returns the item at index.
+     */
+    public Cursor cursor(int index) {
+        return new Cursor(index);
+    }
+
+    /**
+     * @return a reader for lots of gets that land close to each other, like sliding windows or a converging binary
+     * search. See {@link Reader}.
+     */
+    public Reader reader() {
+        return new Reader();
+    }
+
+    /**
+     * Splits along the branches of the tree, so parallel streams get halves of roughly equal size without copying.
+     */
+    @Override
+    public Spliterator<T> spliterator() {
+        return new NodeSpliterator<>(tree(), reversed);
+    }
+
+    public Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    public Stream<T> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
     }
 
     public int size() {
-        return root.itemCount();
+        return head.length + root.itemCount() + tail.length;
     }
 
     public T get(int index) {
         indexCheck(index, size());
-
-        return (T) valueFrom(root, index);
+        if (reversed) index = size() - 1 - index;
+
+        if (index < head.length) {
+            return (T) head[index];
+        } else if (index < head.length + root.itemCount()) {
+            // racy on purpose, a lost update only delays the indexes by a lookup
+            final var buildIndexes = lookups >= WIDE_INDEX_AFTER_LOOKUPS || ++lookups >= WIDE_INDEX_AFTER_LOOKUPS;
+            return (T) indexedValueFrom(root, index - head.length, buildIndexes);
+        } else {
+            return (T) tail[index - head.length - root.itemCount()];
+        }
     }
 
     public T getFromEnd(int index) {
@@ -190,26 +328,134 @@ public class PersistentList<T> implements Iterable<T> {
 
     public PersistentList<T> set(int index, T value) {
         indexCheck(index, size());
+        if (reversed) index = size() - 1 - index;
 
-        return new PersistentList<>(withReplacement(root, index, index + 1, new Object[]{value}, 0));
+        if (index < head.length) {
+            return new PersistentList<>(withReplacement(head, index, index + 1, new Object[]{value}, 0), root, tail, reversed);
+        } else if (index < head.length + root.itemCount()) {
+            final var rootIndex = index - head.length;
+            return new PersistentList<>(head, withReplacement(root, rootIndex, rootIndex + 1, new Object[]{value}, 0), tail, reversed);
+        } else {
+            final var tailIndex = index - head.length - root.itemCount();
+            return new PersistentList<>(head, root, withReplacement(tail, tailIndex, tailIndex + 1, new Object[]{value}, 0), reversed);
+        }
     }
 
     public PersistentList<T> setAtEnd(int index, T value) {
         return set(size() - 1 - index, value);
     }
 
+    /**
+     * Same as calling set(indexes[i], values[i]) for every i, in order, but all the changes are made in one pass down the
+     * tree, so every node on the way to the changed items is copied once instead of once per change.
+     */
+    public PersistentList<T> setAll(int[] indexes, T[] values) {
+        if (indexes.length != values.length) throw new IllegalArgumentException("indexes and values differ in length");
+
+        final var order = sortedUpdateOrder(indexes);
+        return withUpdates(order, (position, old) -> values[(int) order[position]]);
+    }
+
+    /**
+     * Replaces the item at every index with operator applied to it, in one pass like {@link #setAll(int[], Object[])}. An
+     * index that's given more than once gets the operator applied that many times.
+     */
+    public PersistentList<T> updateAll(int[] indexes, UnaryOperator<T> operator) {
+        final var order = sortedUpdateOrder(indexes);
+        return withUpdates(order, (position, old) -> operator.apply((T) old));
+    }
+
+    /**
+     * Replaces the items starting at start with the items of src.
+     */
+    public PersistentList<T> replaceRange(int start, T[] src) {
+        if (src.length == 0) return this;
+
+        indexCheck(start, size());
+        final var end = start + src.length;
+        if (end > size()) throw new IndexOutOfBoundsException(end);
+
+        final Object[] values = reversed ? reversed(src) : src;
+        final var storedStart = reversed ? size() - end : start;
+        final var storedEnd = storedStart + src.length;
+        final var rootStart = head.length;
+        final var rootEnd = head.length + root.itemCount();
+
+        var newHead = head;
+        if (storedStart < rootStart) {
+            newHead = withReplacement(head, storedStart, Math.min(storedEnd, rootStart), values, 0);
+        }
+
+        var newRoot = root;
+        if (storedStart < rootEnd && storedEnd > rootStart) {
+            final var from = Math.max(storedStart, rootStart);
+            newRoot = withReplacement(root, from - rootStart, Math.min(storedEnd, rootEnd) - rootStart, values, from - storedStart);
+        }
+
+        var newTail = tail;
+        if (storedEnd > rootEnd) {
+            final var from = Math.max(storedStart, rootEnd);
+            newTail = withReplacement(tail, from - rootEnd, storedEnd - rootEnd, values, from - storedStart);
+        }
+
+        return new PersistentList<>(newHead, newRoot, newTail, reversed);
+    }
+
+    /**
+     * @return the stored indexes to update in the high half and their position in indexes in the low half, sorted. Sorting
+     * them as longs keeps updates to the same index in the order they were given.
+     */
+    private long[] sortedUpdateOrder(int[] indexes) {
+        final var result = new long[indexes.length];
+
+        for (int i = 0; i < indexes.length; ++i) {
+            indexCheck(indexes[i], size());
+            final var storedIndex = reversed ? size() - 1 - indexes[i] : indexes[i];
+            result[i] = ((long) storedIndex << 32) | i;
+        }
+
+        Arrays.sort(result);
+        return result;
+    }
+
+    private PersistentList<T> withUpdates(long[] order, Update update) {
+        if (order.length == 0) return this;
+
+        final var rootStart = head.length;
+        final var rootEnd = head.length + root.itemCount();
+
+        // the updates for the head, the root and the tail are in that order in the sorted updates
+        final var rootFrom = firstUpdateFrom(order, 0, order.length, rootStart);
+        final var tailFrom = firstUpdateFrom(order, rootFrom, order.length, rootEnd);
+
+        final var newHead = withUpdates(head, order, 0, rootFrom, 0, update);
+        final var newRoot = rootFrom < tailFrom ? withUpdates(root, order, rootFrom, tailFrom, rootStart, update) : root;
+        final var newTail = withUpdates(tail, order, tailFrom, order.length, rootEnd, update);
+
+        return new PersistentList<>(newHead, newRoot, newTail, reversed);
+    }
+
     public PersistentList<T> insert(int index, T[] values) {
         indexCheck(index, size() + 1);
         if (values.length == 0) return this;
 
-        return new PersistentList<>(withInsertion(root, index, values));
+        if (reversed) {
+            return new PersistentList<>(EMPTY_ARRAY, withInsertion(tree(), size() - index, reversed(values)), EMPTY_ARRAY, true);
+        }
+        return new PersistentList<>(withInsertion(tree(), index, values));
     }
 
+    /**
+     * @return this list with the items of values inserted at index, sharing values' nodes. If values is reversed and this
+     * list isn't, or the other way around, values' nodes are in the wrong order to be shared and it's copied in the
+     * opposite order first, which is O(values.size()).
+     */
     public PersistentList<T> insert(int index, PersistentList<T> values) {
         indexCheck(index, size() + 1);
         if (values.size() == 0) return this;
 
-        return new PersistentList<>(withInsertion(root, index, values.root));
+        final var storedIndex = reversed ? size() - index : index;
+        return new PersistentList<>(EMPTY_ARRAY, withInsertion(tree(), storedIndex, values.orientedTree(reversed)), EMPTY_ARRAY, reversed);
     }
 
     public PersistentList<T> insertAtEnd(int index, T[] values) {
@@ -222,8 +468,11 @@ public class PersistentList<T> implements Iterable<T> {
 
     public PersistentList<T> add(int index, T value) {
         indexCheck(index, size() + 1);
+        if (index == size()) return add(value);
+        if (index == 0) return push(value);
 
-        return new PersistentList<>(withInsertion(root, index, new Object[]{value}));
+        final var storedIndex = reversed ? size() - index : index;
+        return new PersistentList<>(EMPTY_ARRAY, withInsertion(tree(), storedIndex, new Object[]{value}), EMPTY_ARRAY, reversed);
     }
 
     public PersistentList<T> addAtEnd(int index, T value) {
@@ -231,7 +480,15 @@ public class PersistentList<T> implements Iterable<T> {
     }
 
     public PersistentList<T> add(T value) {
-        return add(size(), value);
+        return reversed ? storedPush(value) : storedAdd(value);
+    }
+
+    private PersistentList<T> storedAdd(T value) {
+        if (tail.length < LEAF_SIZE) {
+            return new PersistentList<>(head, root, withInsertion(tail, tail.length, new Object[]{value}), reversed);
+        } else {
+            return new PersistentList<>(head, withLeafAppended(root, leaf(tail)), new Object[]{value}, reversed);
+        }
     }
 
     public PersistentList<T> concat(T[] values) {
@@ -247,10 +504,21 @@ public class PersistentList<T> implements Iterable<T> {
 
         indexCheck(index, size());
 
-        final var end = index + length;
+        var end = index + length;
         if (end > size()) throw new IndexOutOfBoundsException(end);
 
-        return new PersistentList<>(withoutRange(root, index, end));
+        if (reversed) {
+            index = size() - end;
+            end = index + length;
+        }
+
+        if (end <= head.length) {
+            return new PersistentList<>(withoutRange(head, index, length), root, tail, reversed);
+        } else if (index >= head.length + root.itemCount()) {
+            return new PersistentList<>(head, root, withoutRange(tail, index - head.length - root.itemCount(), length), reversed);
+        }
+
+        return new PersistentList<>(EMPTY_ARRAY, withoutRange(tree(), index, end), EMPTY_ARRAY, reversed);
     }
 
     public PersistentList<T> remove(int index) {
@@ -274,25 +542,77 @@ public class PersistentList<T> implements Iterable<T> {
         final var end = start + length;
         if (end > size()) throw new IndexOutOfBoundsException(end);
 
-        return new PersistentList<>(subListFrom(root, start, end));
+        if (reversed) {
+            return new PersistentList<>(EMPTY_ARRAY, subListFrom(tree(), size() - end, size() - start), EMPTY_ARRAY, true);
+        }
+        return new PersistentList<>(subListFrom(tree(), start, end));
     }
 
     public PersistentList<T> subListFromEnd(int start, int length) {
         return subList(size() - length - start, length);
     }
 
+    /**
+     * @return the items before index and the items from index on as two lists. They share all of this list's nodes except
+     * the ones on the path to index, so splitting is O(log n).
+     */
+    public Halves<T> splitAt(int index) {
+        indexCheck(index, size() + 1);
+
+        final var tree = tree();
+        final var storedIndex = reversed ? size() - index : index;
+        final var storedBefore = new PersistentList<T>(EMPTY_ARRAY, prefixOf(tree, storedIndex), EMPTY_ARRAY, reversed);
+        final var storedAfter = new PersistentList<T>(EMPTY_ARRAY, suffixOf(tree, storedIndex), EMPTY_ARRAY, reversed);
+
+        return reversed ? new Halves<>(storedAfter, storedBefore) : new Halves<>(storedBefore, storedAfter);
+    }
+
     public PersistentList<T> pull() {
-        if (size() == 0) return this;
-        return remove(0);
+        return reversed ? storedPop() : storedPull();
     }
 
     public PersistentList<T> pop() {
-        if (size() == 0) return this;
-        return remove(size() - 1);
+        return reversed ? storedPull() : storedPop();
     }
 
     public PersistentList<T> push(T value) {
-        return add(0, value);
+        return reversed ? storedAdd(value) : storedPush(value);
+    }
+
+    private PersistentList<T> storedPull() {
+        if (size() == 0) return this;
+
+        if (head.length > 0) {
+            return new PersistentList<>(withoutRange(head, 0, 1), root, tail, reversed);
+        } else if (root.itemCount() > 0) {
+            // move the first leaf into the head so the next pulls don't have to touch the tree
+            final var first = firstLeaf(root);
+            return new PersistentList<>(withoutRange(first.items, 0, 1), withoutFirstLeaf(root), tail, reversed);
+        } else {
+            return new PersistentList<>(head, root, withoutRange(tail, 0, 1), reversed);
+        }
+    }
+
+    private PersistentList<T> storedPop() {
+        if (size() == 0) return this;
+
+        if (tail.length > 0) {
+            return new PersistentList<>(head, root, withoutRange(tail, tail.length - 1, 1), reversed);
+        } else if (root.itemCount() > 0) {
+            // move the last leaf into the tail so the next pops don't have to touch the tree
+            final var last = lastLeaf(root);
+            return new PersistentList<>(head, withoutLastLeaf(root), withoutRange(last.items, last.items.length - 1, 1), reversed);
+        } else {
+            return new PersistentList<>(withoutRange(head, head.length - 1, 1), root, tail, reversed);
+        }
+    }
+
+    private PersistentList<T> storedPush(T value) {
+        if (head.length < LEAF_SIZE) {
+            return new PersistentList<>(withInsertion(head, 0, new Object[]{value}), root, tail, reversed);
+        } else {
+            return new PersistentList<>(new Object[]{value}, withLeafPrepended(root, leaf(head)), tail, reversed);
+        }
     }
 
     public PersistentList<T> put(T value) {
@@ -334,30 +654,246 @@ public class PersistentList<T> implements Iterable<T> {
     }
 
     public PersistentList<T> sort(Comparator<T> comparator) {
-        return new PersistentList<>(sorted(
-                root,
-                (a, b) -> comparator.compare((T) a, (T) b)));
+        final var event = Metrics.begin(Metrics.SortEvent::new);
+        // sort doesn't promise an order for equal items, so a reversed list can be sorted as it's stored
+        final var result = new PersistentList<T>(markedSorted(
+                sorted(tree(), erased(comparator)),
+                erased(comparator)));
+        Metrics.end(event, result.size());
+
+        return result;
+    }
+
+    /**
+     * Same as {@link #sort(Comparator)} but the subtrees are sorted and merged in parallel on the common ForkJoinPool.
+     */
+    public PersistentList<T> parallelSort(Comparator<T> comparator) {
+        final var event = Metrics.begin(Metrics.SortEvent::new);
+        final var result = new PersistentList<T>(markedSorted(
+                invoked(new SortTask(tree(), erased(comparator)), tree()),
+                erased(comparator)));
+        Metrics.end(event, result.size());
+
+        return result;
     }
 
+    /**
+     * The sorted status of every node is cached per comparator, so this is only a scan the first time it's asked with a
+     * comparator. After that it's O(1) for this list and about O(log n) for versions made from it, which only have to
+     * look at the nodes they changed. The cache is by comparator identity, keep the comparator around
+     * (Comparator.naturalOrder() always is the same one) instead of making a new lambda for every call.
+     */
     public boolean isSorted(Comparator<T> comparator) {
-        return isSorted(this, comparator);
+        final var erased = erased(comparator);
+        // the arrays that hold the first and the last items, both read backwards if reversed
+        final var before = reversed ? tail : head;
+        final var after = reversed ? head : tail;
+
+        if (!isSorted(before, erased, reversed) || !isSorted(after, erased, reversed)) return false;
+
+        final var rootSortedness = sortednessOf(root, erased, reversed);
+        if (!rootSortedness.sorted) return false;
+
+        final var lastBefore = before.length == 0 ? null : before[reversed ? 0 : before.length - 1];
+        final var firstAfter = after.length == 0 ? null : after[reversed ? after.length - 1 : 0];
+        if (root.itemCount() == 0) {
+            return before.length == 0 || after.length == 0 || erased.compare(lastBefore, firstAfter) <= 0;
+        }
+
+        return (before.length == 0 || erased.compare(lastBefore, rootSortedness.first) <= 0)
+                && (after.length == 0 || erased.compare(rootSortedness.last, firstAfter) <= 0);
     }
 
-    public PersistentList<T> reverse() {
-        if (size() <= 1) return this;
-        var cached = reverseCache.get();
-        if (cached != null) return new PersistentList<>(cached);
+    // the methods below are for lists that are sorted by the comparator they're given, like Collections.binarySearch they
+    // don't check that and their results are undefined if it's not
 
-        synchronized (reverseCacheLock) {
-            cached = reverseCache.get();
-            if (cached == null) {
-                cached = fromArray(reversed(toArray()));
-                reverseCache = new WeakReference<>(cached);
-            }
+    /**
+     * @return the index of the first item equal to value by comparator, or (-(insertion point) - 1) if there isn't one,
+     * the same as Collections.binarySearch. O(log n) on lists made by {@link #sort(Comparator)}, whose nodes know their
+     * first items, and O(log^2 n) at worst. Reversed lists are searched as they're stored, without reversing anything.
+     */
+    public int binarySearch(T value, Comparator<T> comparator) {
+        final var erased = erased(comparator);
+        final var index = lowerBound(tree(), value, erased, reversed);
+
+        return index < size() && erased.compare(get(index), value) == 0 ? index : -index - 1;
+    }
+
+    /**
+     * @return this list with value added after the items that are less than or equal to it, so it stays sorted.
+     */
+    public PersistentList<T> insertSorted(T value, Comparator<T> comparator) {
+        return add(upperBound(tree(), value, erased(comparator), reversed), value);
+    }
+
+    /**
+     * @return this list without the first item that's equal to value by comparator, or this list if there isn't one.
+     */
+    public PersistentList<T> removeSorted(T value, Comparator<T> comparator) {
+        final var index = binarySearch(value, comparator);
+        return index < 0 ? this : remove(index);
+    }
+
+    /**
+     * @return the items that are greater than or equal to from and less than to, sharing their nodes with this list.
+     */
+    public PersistentList<T> range(T from, T to, Comparator<T> comparator) {
+        final var erased = erased(comparator);
+        final var tree = tree();
+        final var start = lowerBound(tree, from, erased, reversed);
+        final var end = Math.max(start, lowerBound(tree, to, erased, reversed));
+
+        return subList(start, end - start);
+    }
+
+    /**
+     * @return the items of this list and other, both sorted by comparator, in one sorted list. Equal items of this list
+     * come before the ones of other. The lists are split where they cross over each other and the runs in between are
+     * joined as they are, so merging lists that don't overlap much shares most of their nodes and costs
+     * O(runs * log n) instead of a copy of everything.
+     * <p>
+     * The result is stored in the same direction as this list. If other is reversed and this list isn't, or the other way
+     * around, other has to be turned around first, which is a copy of it.
+     */
+    public PersistentList<T> mergeSorted(PersistentList<T> other, Comparator<T> comparator) {
+        if (other.size() == 0) return this;
+        if (size() == 0) return other;
+
+        final var merged = mergedRuns(tree(), other.orientedTree(reversed), erased(comparator), reversed);
+        return new PersistentList<>(EMPTY_ARRAY, merged, EMPTY_ARRAY, reversed);
+    }
+
+    /**
+     * @return the k smallest items by comparator in order, like sort(comparator).subList(0, k) without sorting everything.
+     * Equal items stay in the order they have in this list, which sort doesn't promise. It keeps the best k in a heap while it goes through the items, so it's
+     * O(n + k log k) when most items don't make it and only allocates for k items. Subtrees of
+     * {@link #PARALLEL_THRESHOLD} items or more are gone through in parallel, and subtrees that are known to be sorted
+     * (see {@link #isSorted(Comparator)}) are only read up to their first item that doesn't make it.
+     */
+    public PersistentList<T> sortedPrefix(int k, Comparator<T> comparator) {
+        if (k <= 0 || size() == 0) return new PersistentList<>(EMPTY_LEAF);
+
+        final var erased = erased(comparator);
+        final var heap = selected(tree(), reversed, Math.min(k, size()), erased, false);
+
+        return new PersistentList<>(markedSorted(fromArray(heap.sortedItems()), erased));
+    }
+
+    /**
+     * @return the k greatest items by comparator, greatest first, see {@link #sortedPrefix(int, Comparator)}.
+     */
+    public PersistentList<T> topK(int k, Comparator<T> comparator) {
+        return sortedPrefix(k, comparator.reversed());
+    }
+
+    /**
+     * @return the item at index n of this list sorted by comparator (stably, see {@link #sortedPrefix(int, Comparator)}),
+     * without sorting. Near the ends it only keeps the n + 1 smallest or the size - n greatest items around, further in
+     * it's a quickselect on a copy of the items, which is O(n) either way.
+     */
+    public T nthElement(int n, Comparator<T> comparator) {
+        indexCheck(n, size());
+
+        final var erased = erased(comparator);
+        final var kept = Math.min(n + 1, size() - n);
+        if (kept > size() / NTH_ELEMENT_HEAP_FRACTION) return (T) nthOf(toArray(), n, erased);
+
+        final var tree = tree();
+        final var heap = n < size() / 2
+                ? selected(tree, reversed, n + 1, erased, false)
+                : selected(tree, reversed, size() - n, erased, true);
+
+        return (T) heap.worst();
+    }
+
+    private static Comparator<Object> erased(Comparator<?> comparator) {
+        return (Comparator<Object>) comparator;
+    }
+
+    /**
+     * @return a list of mapper applied to every item. The result has the same tree shape as this list and subtrees of
+     * {@link #PARALLEL_THRESHOLD} items or more are mapped in parallel on the common ForkJoinPool, so mapper shouldn't
+     * depend on the order it's called in.
+     */
+    public <R> PersistentList<R> map(Function<? super T, ? extends R> mapper) {
+        final Function<Object, Object> itemMapper = item -> mapper.apply((T) item);
+
+        return new PersistentList<>(
+                mappedItems(head, itemMapper),
+                invoked(new MapTask(root, itemMapper), root),
+                mappedItems(tail, itemMapper),
+                reversed);
+    }
+
+    /**
+     * @return a list of the items that pass predicate. Leaves whose items all pass are kept as they are and so are
+     * branches whose leaves all are, so filtering out a few items only copies the nodes around them. Runs in parallel
+     * like {@link #map(Function)}.
+     */
+    public PersistentList<T> filter(Predicate<? super T> predicate) {
+        final Predicate<Object> itemPredicate = item -> predicate.test((T) item);
+
+        final var newHead = filteredItems(head, itemPredicate);
+        final var newRoot = invoked(new FilterTask(root, itemPredicate), root);
+        final var newTail = filteredItems(tail, itemPredicate);
+        if (newHead == head && newRoot == root && newTail == tail) return this;
+
+        return new PersistentList<>(newHead, newRoot, newTail, reversed);
+    }
+
+    /**
+     * Same as {@link Stream#reduce(Object, BiFunction, BinaryOperator)}: identity has to be an identity of combiner, and
+     * combiner has to agree with accumulator. Subtrees are reduced in parallel like {@link #map(Function)} and their
+     * results are combined in order.
+     */
+    public <U> U reduce(U identity, BiFunction<U, ? super T, U> accumulator, BinaryOperator<U> combiner) {
+        final BiFunction<U, Object, U> itemAccumulator = (result, item) -> accumulator.apply(result, (T) item);
+        final var first = reversed ? tail : head;
+        final var last = reversed ? head : tail;
+
+        var result = reducedItems(first, reversed, identity, itemAccumulator);
+        result = combiner.apply(result, invoked(new ReduceTask<>(root, reversed, identity, itemAccumulator, combiner), root));
+        return reducedItems(last, reversed, result, itemAccumulator);
+    }
+
+    /**
+     * Goes through the leaves directly instead of through an iterator.
+     */
+    @Override
+    public void forEach(Consumer<? super T> action) {
+        final Consumer<Object> itemAction = item -> action.accept((T) item);
+
+        if (reversed) {
+            forEachIn(tail, true, itemAction);
+            forEachIn(root, true, itemAction);
+            forEachIn(head, true, itemAction);
+        } else {
+            forEachIn(head, false, itemAction);
+            forEachIn(root, false, itemAction);
+            forEachIn(tail, false, itemAction);
         }
+    }
+
+    /**
+     * Calls action on every item, on several threads at once for big subtrees and in no particular order.
+     */
+    public void parallelForEach(Consumer<? super T> action) {
+        final Consumer<Object> itemAction = item -> action.accept((T) item);
+
+        forEachIn(head, false, itemAction);
+        invoked(new ForEachTask(root, itemAction), root);
+        forEachIn(tail, false, itemAction);
+    }
 
-        final var result = new PersistentList<T>(cached);
-        result.reverseCache = new WeakReference<>(root);
+    /**
+     * O(1), the result shares all of this list's nodes and only reads them backwards.
+     */
+    public PersistentList<T> reverse() {
+        if (size() <= 1) return this;
+
+        final var result = new PersistentList<T>(head, root, tail, !reversed);
+        result.treeCache = treeCache;
+        result.reverseCache = reverseCache;
 
         return result;
     }
@@ -383,51 +919,530 @@ public class PersistentList<T> implements Iterable<T> {
         return result;
     }
 
+    /**
+     * Produces a mutable copy of this list for bulk edits. The copy shares all of this list's nodes and only copies the
+     * ones it needs to change, after which it changes them in place. Call {@link Transient#persistent()} to get the
+     * result back as a PersistentList.
+     * <p>
+     * A transient only edits trees in their stored order, so the copy of a reversed list starts from a copy of its whole
+     * tree turned around, which is O(n) instead of sharing it.
+     */
+    public Transient<T> transientCopy() {
+        if (reversed) return new Transient<>(orientedTree(false), EMPTY_ARRAY);
+
+        return new Transient<>(head.length == 0 ? root : withLeafPrepended(root, leaf(head)), tail);
+    }
+
+    /**
+     * @return the index of the first occurrence of item or null if there isn't one. With
+     * {@link #setMembershipFilters(boolean)} on, subtrees whose membership filter rules out the item are skipped.
+     */
     public Integer indexOf(T item) {
-        // TODO maybe add a cache
-        int index = 0;
-        for (final var localItem : this) {
-            if (Objects.equals(this, localItem)) return index;
-            ++index;
+        if (reversed) {
+            final var stored = storedLastIndexOf(item);
+            return stored == null ? null : size() - 1 - stored;
         }
-        return null;
+        return storedIndexOf(item);
     }
 
-    public boolean contains(T item) {
-        // TODO maybe add a cache
-        for (final var localItem : this) {
-            if (Objects.equals(this, localItem)) return true;
+    /**
+     * @return the index of the last occurrence of item or null if there isn't one.
+     */
+    public Integer lastIndexOf(T item) {
+        if (reversed) {
+            final var stored = storedIndexOf(item);
+            return stored == null ? null : size() - 1 - stored;
         }
-        return false;
-
+        return storedLastIndexOf(item);
     }
 
+    private Integer storedIndexOf(T item) {
+        for (int i = 0; i < head.length; ++i) {
+            if (Objects.equals(item, head[i])) return i;
+        }
 
-    // ==================== Internal Modification ========================
-    private static Object valueFrom(Node n, int index) {
-        if (n instanceof Branch b) {
-            if (index < b.left.itemCount()) {
-                return valueFrom(b.left, index);
-            } else {
-                return valueFrom(b.right, index - b.left.itemCount());
+        final var fromRoot = indexOf(root, item, hashCodeOf(item), membershipFilters);
+        if (fromRoot >= 0) return head.length + fromRoot;
+
+        for (int i = 0; i < tail.length; ++i) {
+            if (Objects.equals(item, tail[i])) return head.length + root.itemCount() + i;
+        }
+
+        return null;
+    }
+
+    private Integer storedLastIndexOf(T item) {
+        for (int i = tail.length - 1; i >= 0; --i) {
+            if (Objects.equals(item, tail[i])) return head.length + root.itemCount() + i;
+        }
+
+        final var fromRoot = lastIndexOf(root, item, hashCodeOf(item), membershipFilters);
+        if (fromRoot >= 0) return head.length + fromRoot;
+
+        for (int i = head.length - 1; i >= 0; --i) {
+            if (Objects.equals(item, head[i])) return i;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the indexes of every occurrence of item, in order.
+     */
+    public IntPersistentList indexOfAll(T item) {
+        final var result = new ArrayList<Integer>();
+
+        for (int i = 0; i < head.length; ++i) {
+            if (Objects.equals(item, head[i])) result.add(i);
+        }
+
+        indexesOf(root, item, hashCodeOf(item), membershipFilters, head.length, result);
+
+        for (int i = 0; i < tail.length; ++i) {
+            if (Objects.equals(item, tail[i])) result.add(head.length + root.itemCount() + i);
+        }
+
+        if (reversed) {
+            Collections.reverse(result);
+            result.replaceAll(i -> size() - 1 - i);
+        }
+
+        return new IntPersistentList(result.stream().mapToInt(i -> i).toArray());
+    }
+
+    public boolean contains(T item) {
+        return indexOf(item) != null;
+    }
+
+    /**
+     * Produces the edits that turn this list into other. Nodes that both lists share are found by identity wherever they
+     * are in the two trees and are skipped without looking at their items, so diffing two versions of a list costs about
+     * the number of changed nodes, not the size of the lists.
+     * <p>
+     * The edits are ordered by index, don't overlap and their indexes are all positions in this list, see
+     * {@link #patch(List)}.
+     * <p>
+     * Lists stored in opposite directions (one of them reversed) can't share nodes, other is turned around first and
+     * diffing them is O(n).
+     */
+    public List<Edit<T>> diff(PersistentList<T> other) {
+        final var result = new ArrayList<Edit<T>>();
+        if (this == other) return result;
+
+        // two lists reversed the same way can be compared in their stored order
+        final var a = tree();
+        final var b = other.orientedTree(reversed);
+
+        for (final var range : changedRanges(a, b)) {
+            final var start = range[0];
+            final var end = range[1];
+            final var otherStart = range[2];
+            final var otherEnd = range[3];
+
+            final var index = reversed ? size() - end : start;
+            final var otherIndex = reversed ? other.size() - otherEnd : otherStart;
+
+            if (start == end) {
+                result.add(new Edit<>(Edit.Kind.INSERT, index, 0, other.subList(otherIndex, otherEnd - otherStart)));
+            } else if (otherStart == otherEnd) {
+                result.add(new Edit<>(Edit.Kind.REMOVE, index, end - start, new PersistentList<>()));
+            } else {
+                result.add(new Edit<>(Edit.Kind.REPLACE, index, end - start, other.subList(otherIndex, otherEnd - otherStart)));
+            }
+        }
+
+        if (reversed) Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Applies edits made by {@link #diff(PersistentList)} on this list, or on a list equal to it.
+     */
+    public PersistentList<T> patch(List<Edit<T>> edits) {
+        var result = this;
+
+        // last to first so the indexes of the remaining edits still line up
+        for (int i = edits.size() - 1; i >= 0; --i) {
+            final var edit = edits.get(i);
+
+            switch (edit.kind) {
+                case INSERT -> result = result.insert(edit.index, edit.values);
+                case REMOVE -> result = result.remove(edit.index, edit.length);
+                case REPLACE -> result = result.remove(edit.index, edit.length).insert(edit.index, edit.values);
+            }
+        }
+
+        return result;
+    }
+
+
+    /**
+     * The whole list as one node, with the head and tail pushed into the tree as leaves.
+     */
+    private Node tree() {
+        if (head.length == 0 && tail.length == 0) return root;
+
+        var result = treeCache;
+        if (result == null) {
+            result = root;
+            if (head.length > 0) result = withLeafPrepended(result, leaf(head));
+            if (tail.length > 0) result = withLeafAppended(result, leaf(tail));
+            treeCache = result;
+        }
+        return result;
+    }
+
+    /**
+     * The whole list as one node that holds the items in their actual order, or backwards if backwards is set. This is
+     * {@link #tree()} when the list is stored that way, otherwise it's a reversed copy of it that's cached in
+     * {@link #reverseCache}.
+     */
+    private Node orientedTree(boolean backwards) {
+        if (backwards == reversed) return tree();
+
+        var cached = cachedReverse();
+        if (cached != null) {
+            if (Metrics.ENABLED) Metrics.reverseCacheHits.increment();
+            return cached;
+        }
+
+        synchronized (this) {
+            cached = cachedReverse();
+            if (cached == null) {
+                if (Metrics.ENABLED) Metrics.reverseCacheMisses.increment();
+                final var event = Metrics.begin(Metrics.ReverseEvent::new);
+
+                cached = reversedNode(tree());
+                reverseCache = new WeakReference<>(cached);
+
+                Metrics.end(event, cached.itemCount());
             }
+        }
+
+        return cached;
+    }
+
+    private Node cachedReverse() {
+        final var cache = reverseCache;
+        return cache == null ? null : cache.get();
+    }
+
+    // ==================== Wide Indexes ========================
+    /**
+     * How many levels of branches a wide index skips, 2^5 = 32 nodes per index like the nodes of a 32-way tree.
+     */
+    private static final int WIDE_INDEX_DEPTH = 5;
+    /**
+     * Branches smaller than this are searched the binary way, an index wouldn't skip more than a level or two.
+     */
+    private static final int WIDE_INDEX_MIN_ITEMS = 2 * LEAF_SIZE;
+    /**
+     * A list only builds indexes once it's had this many lookups, so versions that are only looked into once or twice
+     * after an edit don't pay for indexes they won't use. Indexes that are already there are always used.
+     */
+    private static final int WIDE_INDEX_AFTER_LOOKUPS = 4;
+
+    /**
+     * Same as {@link #valueFrom(Node, int)} but it jumps over {@link #WIDE_INDEX_DEPTH} levels at a time through the
+     * {@link WideIndex} of big branches, so a lookup in a million items goes through about 4 nodes instead of 15.
+     * <p>
+     * Only for trees of a PersistentList, a {@link Transient} changes its own branches in place which would make their
+     * indexes stale.
+     */
+    private static Object indexedValueFrom(Node n, int index, boolean buildIndexes) {
+        // only the root and every WIDE_INDEX_DEPTH-th level below it are indexed, the levels in between are skipped
+        var levelsToIndex = 0;
+        var steps = 0;
+
+        while (n instanceof Branch b) {
+            ++steps;
+            final var wide = levelsToIndex == 0 && b.itemCount >= WIDE_INDEX_MIN_ITEMS ? wideIndexOf(b, buildIndexes) : null;
+            if (wide == null) levelsToIndex = (levelsToIndex == 0 ? WIDE_INDEX_DEPTH : levelsToIndex) - 1;
+
+            if (wide != null) {
+                final var ends = wide.ends;
+
+                // the subtrees are about equally big so the guess is right or close, the size table sorts out the rest
+                var slot = (int) ((long) index * ends.length / b.itemCount);
+                while (ends[slot] <= index) ++slot;
+                while (slot > 0 && ends[slot - 1] > index) --slot;
+
+                if (slot > 0) index -= ends[slot - 1];
+                n = wide.nodes[slot];
+            } else if (index < b.left.itemCount()) {
+                n = b.left;
+            } else {
+                index -= b.left.itemCount();
+                n = b.right;
+            }
+        }
+
+        if (Metrics.ENABLED) Metrics.lookup(steps);
+        return ((Leaf) n).items[index];
+    }
+
+    private static WideIndex wideIndexOf(Branch b, boolean build) {
+        final var result = b.wideIndex;
+        if (result != null || !build) return result;
+
+        return b.wideIndex = new WideIndex(b);
+    }
+
+    /**
+     * Gives replaced, a copy of b with the items in [start, end) replaced, the wide index of b with the nodes under the
+     * replaced items swapped for the new ones. Replacing items doesn't change the shape of the tree so the size table
+     * is shared as is, and a new version doesn't have to build its indexes again after every set.
+     */
+    private static Branch withWideIndexFrom(Branch b, Branch replaced, int start, int end) {
+        final var wide = b.wideIndex;
+        if (wide == null) return replaced;
+
+        final var nodes = Arrays.copyOf(wide.nodes, wide.nodes.length);
+        for (int slot = 0; slot < nodes.length; ++slot) {
+            final var slotStart = slot > 0 ? wide.ends[slot - 1] : 0;
+            if (slotStart >= end) break;
+            if (wide.ends[slot] <= start || slotStart == wide.ends[slot]) continue;
+
+            // find the node that took this one's place, by the index of its first item
+            Node n = replaced;
+            var index = slotStart;
+            for (int level = 0; level < WIDE_INDEX_DEPTH && n instanceof Branch nb; ++level) {
+                if (index < nb.left.itemCount()) {
+                    n = nb.left;
+                } else {
+                    index -= nb.left.itemCount();
+                    n = nb.right;
+                }
+            }
+            nodes[slot] = n;
+        }
+
+        replaced.wideIndex = new WideIndex(nodes, wide.ends);
+        return replaced;
+    }
+
+    /**
+     * The nodes {@link #WIDE_INDEX_DEPTH} levels under a branch (or less where a leaf comes first) in order, with the
+     * running total of their item counts. It's the relaxed size table of an RRB tree node, laid over the binary tree.
+     */
+    private static class WideIndex {
+        final Node[] nodes;
+        final int[] ends;
+
+        WideIndex(Branch b) {
+            final var found = new ArrayList<Node>(1 << WIDE_INDEX_DEPTH);
+            collect(b, WIDE_INDEX_DEPTH, found);
+
+            nodes = found.toArray(new Node[0]);
+            ends = new int[nodes.length];
+
+            var total = 0;
+            for (int i = 0; i < nodes.length; ++i) {
+                total += nodes[i].itemCount();
+                ends[i] = total;
+            }
+        }
+
+        WideIndex(Node[] nodes, int[] ends) {
+            this.nodes = nodes;
+            this.ends = ends;
+        }
+
+        private static void collect(Node n, int levels, List<Node> result) {
+            if (levels > 0 && n instanceof Branch b) {
+                collect(b.left, levels - 1, result);
+                collect(b.right, levels - 1, result);
+            } else {
+                result.add(n);
+            }
+        }
+    }
+
+    // ==================== Membership Filters ========================
+    private static final int FILTER_BITS_PER_ITEM = 8;
+    private static final int MIN_FILTER_SIZE = 64;
+    private static final int MAX_FILTER_SIZE = 8192;
+    /**
+     * Only nodes with at most this many items get a filter. Bigger ones would either need more than
+     * {@link #MAX_FILTER_SIZE} bits or get so full they'd let everything through, so the search goes past them to the
+     * biggest nodes below this size instead.
+     */
+    private static final int MAX_FILTERED_ITEMS = MAX_FILTER_SIZE / FILTER_BITS_PER_ITEM;
+    private static final long[] SATURATED_FILTER = new long[MAX_FILTER_SIZE / 64];
+    private static volatile boolean membershipFilters = false;
+
+    static {
+        Arrays.fill(SATURATED_FILTER, -1L);
+    }
+
+    /**
+     * Turns the membership filters of {@link #indexOf(Object)}, {@link #lastIndexOf(Object)}, {@link #contains(Object)}
+     * and {@link #indexOfAll(Object)} on or off. While they're on a search only looks into subtrees of up to
+     * {@link #MAX_FILTERED_ITEMS} items whose bloom filter says they might hold the item. The first search builds the
+     * filters of the tree, which hashes every item and keeps about a byte per item around, so it only pays off for lists
+     * that are searched over and over. That's why it's off by default. Turning it off keeps the filters that were built.
+     */
+    public static void setMembershipFilters(boolean enabled) {
+        membershipFilters = enabled;
+    }
+
+    public static boolean isUsingMembershipFilters() {
+        return membershipFilters;
+    }
+
+    /**
+     * The bloom filter of a node of at most {@link #MAX_FILTERED_ITEMS} items. Every item sets two bits and a filter has
+     * about {@link #FILTER_BITS_PER_ITEM} bits per item.
+     * <p>
+     * Filters are made the first time they're needed and cached in the node, so every version of a list that shares the
+     * node shares the filter. Filters with every bit set are replaced by {@link #SATURATED_FILTER}.
+     */
+    private static long[] filterOf(Node n) {
+        if (n instanceof Branch b) {
+            var result = b.filterCache;
+            if (result == null) {
+                b.filterCache = result = saturatedIfFull(filterFromItems(b));
+            }
+            return result;
         } else if (n instanceof Leaf l) {
-            return l.items[index];
+            var result = l.filterCache;
+            if (result == null) {
+                l.filterCache = result = saturatedIfFull(filterFromItems(l));
+            }
+            return result;
         } else {
-            return null;
+            return SATURATED_FILTER;
+        }
+    }
+
+    private static long[] filterFromItems(Node n) {
+        final var wantedSize = Math.min((long) n.itemCount() * FILTER_BITS_PER_ITEM, MAX_FILTER_SIZE);
+        final var size = Math.max(MIN_FILTER_SIZE, Integer.highestOneBit((int) Math.max(1, wantedSize - 1)) << 1);
+        final var sizeBits = Integer.numberOfTrailingZeros(size);
+        final var result = new long[size / 64];
+
+        final var leafIterator = new LeafIterator(n);
+        while (leafIterator.hasNext()) {
+            for (final var item : leafIterator.next().items) {
+                final var hash = hashCodeOf(item);
+                final var bitA = filterBitA(hash, sizeBits);
+                final var bitB = filterBitB(hash, sizeBits);
+                result[bitA >>> 6] |= 1L << bitA;
+                result[bitB >>> 6] |= 1L << bitB;
+            }
+        }
+
+        return result;
+    }
+
+    private static long[] saturatedIfFull(long[] filter) {
+        for (final var bits : filter) {
+            if (bits != -1L) return filter;
+        }
+        return SATURATED_FILTER;
+    }
+
+    private static int filterBitA(int hash, int sizeBits) {
+        return (hash * 0x9E3779B9) >>> (32 - sizeBits);
+    }
+
+    private static int filterBitB(int hash, int sizeBits) {
+        final var mixed = hash * 0x9E3779B9;
+        return ((mixed ^ (mixed >>> 15)) * 0x2C1B3C6D) >>> (32 - sizeBits);
+    }
+
+    private static boolean mightContain(Node n, int hash) {
+        final var filter = filterOf(n);
+        if (filter == SATURATED_FILTER) return true;
+
+        final var sizeBits = Integer.numberOfTrailingZeros(filter.length * 64);
+        final var bitA = filterBitA(hash, sizeBits);
+        final var bitB = filterBitB(hash, sizeBits);
+        return (filter[bitA >>> 6] & (1L << bitA)) != 0 && (filter[bitB >>> 6] & (1L << bitB)) != 0;
+    }
+
+    /**
+     * @return whether the search for an item with hash can skip n. Only the first node on the way down that's small
+     * enough to have a filter is checked, after that filtered is false and the subtree is just searched.
+     */
+    private static boolean filteredOut(Node n, int hash, boolean filtered) {
+        return filtered && n.itemCount() <= MAX_FILTERED_ITEMS && !mightContain(n, hash);
+    }
+
+    private static int indexOf(Node n, Object item, int hash, boolean filtered) {
+        if (n.itemCount() == 0 || filteredOut(n, hash, filtered)) return -1;
+        filtered &= n.itemCount() > MAX_FILTERED_ITEMS;
+
+        if (n instanceof Branch b) {
+            final var fromLeft = indexOf(b.left, item, hash, filtered);
+            if (fromLeft >= 0) return fromLeft;
+
+            final var fromRight = indexOf(b.right, item, hash, filtered);
+            return fromRight >= 0 ? b.left.itemCount() + fromRight : -1;
+        } else if (n instanceof Leaf l) {
+            for (int i = 0; i < l.items.length; ++i) {
+                if (Objects.equals(item, l.items[i])) return i;
+            }
+            return -1;
+        } else throw new NullPointerException();
+    }
+
+    private static int lastIndexOf(Node n, Object item, int hash, boolean filtered) {
+        if (n.itemCount() == 0 || filteredOut(n, hash, filtered)) return -1;
+        filtered &= n.itemCount() > MAX_FILTERED_ITEMS;
+
+        if (n instanceof Branch b) {
+            final var fromRight = lastIndexOf(b.right, item, hash, filtered);
+            if (fromRight >= 0) return b.left.itemCount() + fromRight;
+
+            return lastIndexOf(b.left, item, hash, filtered);
+        } else if (n instanceof Leaf l) {
+            for (int i = l.items.length - 1; i >= 0; --i) {
+                if (Objects.equals(item, l.items[i])) return i;
+            }
+            return -1;
+        } else throw new NullPointerException();
+    }
+
+    private static void indexesOf(Node n, Object item, int hash, boolean filtered, int offset, List<Integer> result) {
+        if (n.itemCount() == 0 || filteredOut(n, hash, filtered)) return;
+        filtered &= n.itemCount() > MAX_FILTERED_ITEMS;
+
+        if (n instanceof Branch b) {
+            indexesOf(b.left, item, hash, filtered, offset, result);
+            indexesOf(b.right, item, hash, filtered, offset + b.left.itemCount(), result);
+        } else if (n instanceof Leaf l) {
+            for (int i = 0; i < l.items.length; ++i) {
+                if (Objects.equals(item, l.items[i])) result.add(offset + i);
+            }
+        } else throw new NullPointerException();
+    }
+
+    // ==================== Internal Modification ========================
+    private static Object valueFrom(Node n, int index) {
+        while (n instanceof Branch b) {
+            final var leftCount = b.left.itemCount();
+            if (index < leftCount) {
+                n = b.left;
+            } else {
+                index -= leftCount;
+                n = b.right;
+            }
         }
+
+        return n instanceof Leaf l ? l.items[index] : null;
     }
 
     private static Node withInsertion(Node n, int index, Object[] values) {
         if (n instanceof Branch b) {
             if (index < b.left.itemCount()) {
                 return shallowlyBalanced(
-                        new Branch(
+                        branch(
                                 withInsertion(b.left, index, values),
                                 b.right));
             } else {
                 return shallowlyBalanced(
-                        new Branch(
+                        branch(
                                 b.left,
                                 withInsertion(b.right, index - b.left.itemCount(), values)));
             }
@@ -435,7 +1450,7 @@ public class PersistentList<T> implements Iterable<T> {
             final var items = withInsertion(l.items, index, values);
 
             if (items.length <= LEAF_SIZE) {
-                return new Leaf(items);
+                return leaf(items);
             } else {
                 return fromPartitions(
                         partition(items, LEAF_SIZE));
@@ -445,66 +1460,84 @@ public class PersistentList<T> implements Iterable<T> {
         }
     }
 
-    private static Node withInsertion(Node n, int index, Node values) {
+    private static Node withLeafAppended(Node n, Leaf leaf) {
+        if (n.itemCount() == 0) return leaf;
+
         if (n instanceof Branch b) {
-            if (index < b.left.itemCount()) {
-                return shallowlyBalanced(
-                        new Branch(
-                                withInsertion(b.left, index, values),
-                                b.right));
-            } else {
-                return shallowlyBalanced(
-                        new Branch(
-                                b.left,
-                                withInsertion(b.right, index - b.left.itemCount(), values)));
-            }
+            return shallowlyBalanced(
+                    branch(
+                            b.left,
+                            withLeafAppended(b.right, leaf)));
         } else if (n instanceof Leaf l) {
-            final var preceding = Arrays.copyOfRange(l.items, 0, index);
-            final var following = Arrays.copyOfRange(l.items, index, l.items.length);
-
-            return withInsertion(
-                    withInsertion(values, values.itemCount(), following),
-                    0, preceding);
+            return branch(l, leaf);
         } else {
             throw new NullPointerException();
         }
     }
 
-    private static Node withoutRange(Node n, int start, int end) {
-        if (start == 0 && end == n.itemCount()) return EMPTY_LEAF;
-        if (start == end) return n;
+    private static Node withLeafPrepended(Node n, Leaf leaf) {
+        if (n.itemCount() == 0) return leaf;
 
         if (n instanceof Branch b) {
-            if (start < b.left.itemCount()) {
-                if (end > b.left.itemCount()) {
-                    return shallowlyBalanced(
-                            shallowlyPruned(new Branch(
-                                    withoutRange(b.left, start, b.left.itemCount()),
-                                    withoutRange(b.right, 0, end - b.left.itemCount()))));
-                } else {
-                    return shallowlyBalanced(
-                            shallowlyPruned(new Branch(
-                                    withoutRange(b.left, start, end),
-                                    b.right)));
-                }
-            } else {
-                return shallowlyBalanced(
-                        shallowlyPruned(new Branch(
-                                b.left,
-                                withoutRange(
-                                        b.right,
-                                        start - b.left.itemCount(),
-                                        end - b.left.itemCount()))));
-            }
+            return shallowlyBalanced(
+                    branch(
+                            withLeafPrepended(b.left, leaf),
+                            b.right));
         } else if (n instanceof Leaf l) {
-            final var items = withoutRange(l.items, start, end - start);
-
-            return items.length == 0 ? EMPTY_LEAF : new Leaf(items);
+            return branch(leaf, l);
         } else {
             throw new NullPointerException();
         }
     }
 
+    private static Leaf firstLeaf(Node n) {
+        while (n instanceof Branch b) n = b.left;
+        return (Leaf) n;
+    }
+
+    private static Leaf lastLeaf(Node n) {
+        while (n instanceof Branch b) n = b.right;
+        return (Leaf) n;
+    }
+
+    private static Node withoutFirstLeaf(Node n) {
+        if (n instanceof Branch b) {
+            return shallowlyPrunedAndBalanced(
+                    branch(
+                            withoutFirstLeaf(b.left),
+                            b.right));
+        } else {
+            return EMPTY_LEAF;
+        }
+    }
+
+    private static Node withoutLastLeaf(Node n) {
+        if (n instanceof Branch b) {
+            return shallowlyPrunedAndBalanced(
+                    branch(
+                            b.left,
+                            withoutLastLeaf(b.right)));
+        } else {
+            return EMPTY_LEAF;
+        }
+    }
+
+    private static Node withInsertion(Node n, int index, Node values) {
+        // a few items are cheaper to copy into the leaf they go in than to join in as a leaf of their own
+        if (values.itemCount() <= LEAF_SIZE) return withInsertion(n, index, itemsOf(values));
+
+        return joinedAtLeaves(
+                joinedAtLeaves(prefixOf(n, index), values),
+                suffixOf(n, index));
+    }
+
+    private static Node withoutRange(Node n, int start, int end) {
+        if (start == 0 && end == n.itemCount()) return EMPTY_LEAF;
+        if (start == end) return n;
+
+        return joinedAtLeaves(prefixOf(n, start), suffixOf(n, end));
+    }
+
 
     private static Node withReplacement(Node n, int start, int end, Object[] src, int srcStart) {
         final var length = end - start;
@@ -513,76 +1546,107 @@ public class PersistentList<T> implements Iterable<T> {
         if (length <= 0) return n;
 
         if (n instanceof Branch b) {
+            final Branch result;
             if (start < b.left.itemCount()) {
                 if (end > b.left.itemCount()) {
                     final var leftPortion = b.left.itemCount() - start;
-                    return new Branch(
+                    result = branch(
                             withReplacement(b.left, start, b.left.itemCount(), src, srcStart),
                             withReplacement(b.right, 0, end - b.left.itemCount(), src, srcStart + leftPortion));
                 } else {
-                    return new Branch(
+                    result = branch(
                             withReplacement(b.left, start, end, src, srcStart),
                             b.right);
                 }
             } else {
-                return new Branch(
+                result = branch(
                         b.left,
                         withReplacement(b.right, start - b.left.itemCount(), end - b.left.itemCount(), src, srcStart));
             }
+            return withWideIndexFrom(b, result, start, end);
         } else if (n instanceof Leaf l) {
             final var newItems = withReplacement(l.items, start, end, src, srcStart);
             if (newItems != l.items) {
-                return new Leaf(newItems);
+                return leaf(newItems);
             } else {
                 return l;
             }
         } else throw new NullPointerException();
     }
 
-    private static Node subListFrom(Node n, int start, int end) {
+    /**
+     * Applies the updates in order[from, to) to n, whose first item is at offset in the whole list. order is sorted by
+     * index, so each branch only has to find where its left side's updates end and every node on the way is copied once.
+     */
+    private static Node withUpdates(Node n, long[] order, int from, int to, int offset, Update update) {
         if (n instanceof Branch b) {
-            if (start < b.left.itemCount()) {
-                if (end > b.left.itemCount()) {
-                    return shallowlyBalanced(
-                            shallowlyPruned(new Branch(
-                                    subListFrom(b.left, start, b.left.itemCount()),
-                                    subListFrom(b.right, 0, end - b.left.itemCount()))));
-                } else {
-                    return shallowlyBalanced(
-                            shallowlyPruned(new Branch(
-                                    subListFrom(b.left, start, end),
-                                    EMPTY_LEAF)));
-                }
-            } else {
-                return shallowlyBalanced(shallowlyPruned(
-                        new Branch(
-                                EMPTY_LEAF,
-                                subListFrom(b.right,
-                                        start - b.left.itemCount(),
-                                        end - b.left.itemCount()))));
-            }
-        } else if (n instanceof Leaf l) {
-            if (start == 0 && end == l.items.length) return l;
+            final var rightOffset = offset + b.left.itemCount();
+
+            final var split = firstUpdateFrom(order, from, to, rightOffset);
 
-            final var items = Arrays.copyOfRange(l.items, start, end);
+            final var left = split > from ? withUpdates(b.left, order, from, split, offset, update) : b.left;
+            final var right = to > split ? withUpdates(b.right, order, split, to, rightOffset, update) : b.right;
+            if (left == b.left && right == b.right) return b;
+
+            final var start = (int) (order[from] >>> 32) - offset;
+            final var end = (int) (order[to - 1] >>> 32) - offset + 1;
+            return withWideIndexFrom(b, branch(left, right), start, end);
+        } else if (n instanceof Leaf l) {
+            final var items = withUpdates(l.items, order, from, to, offset, update);
+            return items == l.items ? l : leaf(items);
+        } else throw new NullPointerException();
+    }
 
-            if (items.length == 0) {
-                return EMPTY_LEAF;
+    /**
+     * @return the position of the first update in order[from, to) whose index is at least index, or to if there isn't one.
+     */
+    private static int firstUpdateFrom(long[] order, int from, int to, int index) {
+        // the lowest value an update of index can have
+        final var key = (long) index << 32;
+
+        while (from < to) {
+            final var middle = (from + to) >>> 1;
+            if (order[middle] < key) {
+                from = middle + 1;
             } else {
-                return new Leaf(items);
+                to = middle;
             }
-        } else {
-            throw new NullPointerException();
         }
+
+        return from;
     }
 
-    private static Node shallowlyBalanced(Node n) {
-        if (n.absoluteBalanceFactor() <= 1) return n;
-        var result = n;
-        int bestAbsoluteBalanceFactor = result.absoluteBalanceFactor();
+    private static Object[] withUpdates(Object[] original, long[] order, int from, int to, int offset, Update update) {
+        if (from == to) return original;
 
-        for (int loopCount = 0; loopCount < n.weight(); ++loopCount) { // Failsafe in case the loop doesn't halt.
-            final var rotatedLeftAbsoluteBalanceFactor = Math.abs(rotatedLeftBalanceFactor(result));
+        final var result = Arrays.copyOf(original, original.length);
+        boolean containedChange = false;
+
+        for (int position = from; position < to; ++position) {
+            final var index = (int) (order[position] >>> 32) - offset;
+            final var newItem = update.apply(position, result[index]);
+
+            if (!Objects.equals(result[index], newItem)) {
+                containedChange = true;
+            }
+
+            result[index] = newItem;
+        }
+
+        return containedChange ? result : original;
+    }
+
+    private static Node subListFrom(Node n, int start, int end) {
+        return suffixOf(prefixOf(n, end), start);
+    }
+
+    static Node shallowlyBalanced(Node n) {
+        if (n.absoluteBalanceFactor() <= 1) return n;
+        var result = n;
+        int bestAbsoluteBalanceFactor = result.absoluteBalanceFactor();
+
+        for (int loopCount = 0; loopCount < n.weight(); ++loopCount) { // Failsafe in case the loop doesn't halt.
+            final var rotatedLeftAbsoluteBalanceFactor = Math.abs(rotatedLeftBalanceFactor(result));
             final var rotatedRightAbsoluteBalanceFactor = Math.abs(rotatedRightBalanceFactor(result));
 
             if (rotatedRightAbsoluteBalanceFactor < rotatedLeftAbsoluteBalanceFactor) {
@@ -594,6 +1658,7 @@ public class PersistentList<T> implements Iterable<T> {
                     result = rotatedLeft(result);
                 } else return result;
             }
+            if (Metrics.ENABLED) Metrics.rotations.increment();
             bestAbsoluteBalanceFactor = result.absoluteBalanceFactor();
 //
 //
@@ -619,7 +1684,8 @@ public class PersistentList<T> implements Iterable<T> {
 //                return result;
 //            }
         }
-        System.err.println("Loop count limit exceeded in PersistentList.shallowlyBalanced(Node n)");
+        // counted even with metrics off, it only happens if the balancing is broken
+        Metrics.balancingLimitHits.increment();
         return result;
     }
 
@@ -678,7 +1744,7 @@ public class PersistentList<T> implements Iterable<T> {
     private static Node rotatedLeft(Node root) {
         if (root instanceof Branch b) {
             if (b.right instanceof Branch right) {
-                return new Branch(new Branch(b.left, right.left), right.right);
+                return branch(branch(b.left, right.left), right.right);
             } else {
                 return b;
             }
@@ -690,7 +1756,7 @@ public class PersistentList<T> implements Iterable<T> {
     private static Node rotatedRight(Node root) {
         if (root instanceof Branch b) {
             if (b.left instanceof Branch left) {
-                return new Branch(left.left, new Branch(left.right, b.right));
+                return branch(left.left, branch(left.right, b.right));
             } else {
                 return b;
             }
@@ -714,34 +1780,287 @@ public class PersistentList<T> implements Iterable<T> {
 //        }
     }
 
+    /**
+     * @return whether a's items are b's items backwards, for lists that are stored in opposite directions. a is read from
+     * the left and b from the right, so neither has to be turned around.
+     */
+    private static boolean nodesAreMirrored(Node a, Node b) {
+        if (a.itemCount() != b.itemCount()) return false;
+
+        final var leavesA = new LeafIterator(a, false);
+        final var leavesB = new LeafIterator(b, true);
+        var itemsA = EMPTY_ARRAY;
+        var itemsB = EMPTY_ARRAY;
+        var indexA = 0;
+        // counts down, b's leaves are read from their end
+        var indexB = 0;
+
+        for (int i = a.itemCount(); i > 0; --i) {
+            while (indexA == itemsA.length) {
+                itemsA = leavesA.next().items;
+                indexA = 0;
+            }
+            while (indexB == 0) {
+                itemsB = leavesB.next().items;
+                indexB = itemsB.length;
+            }
+
+            if (!Objects.equals(itemsA[indexA++], itemsB[--indexB])) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Walks both trees side by side, always at the same item position in both. Whenever both sides are at the start of
+     * the same node that node is skipped entirely, wherever in the trees it is, so comparing versions that share most of
+     * their nodes only looks at the nodes that differ.
+     */
     private static boolean fullCheckValueEquality(Node a, Node b) {
-        final var leafIteratorA = new LeafIterator(a);
-        final var leafIteratorB = new LeafIterator(b);
-
-        Leaf currentLeafA = null;
-        Leaf currentLeafB = null;
-        int offsetA = 0;
-        int offsetB = 0;
-
-        while (leafIteratorA.hasNext() && leafIteratorB.hasNext()) {
-            currentLeafA = leafIteratorA.next();
-            currentLeafB = leafIteratorB.next();
-            if (currentLeafA != currentLeafB) {
-                break;
+        final var pathA = new ArrayDeque<Node>();
+        final var pathB = new ArrayDeque<Node>();
+        pathA.push(a);
+        pathB.push(b);
+
+        // how far into the leaf on top of each path the walk is
+        int leafOffsetA = 0;
+        int leafOffsetB = 0;
+
+        while (!pathA.isEmpty() && !pathB.isEmpty()) {
+            final var nodeA = pathA.peek();
+            final var nodeB = pathB.peek();
+
+            if (nodeA.itemCount() == 0) {
+                pathA.pop();
+            } else if (nodeB.itemCount() == 0) {
+                pathB.pop();
+            } else if (nodeA == nodeB && leafOffsetA == 0 && leafOffsetB == 0) {
+                pathA.pop();
+                pathB.pop();
+            } else if (nodeA instanceof Branch branchA && (nodeB instanceof Leaf || nodeA.itemCount() >= nodeB.itemCount())) {
+                pathA.pop();
+                pathA.push(branchA.right);
+                pathA.push(branchA.left);
+            } else if (nodeB instanceof Branch branchB) {
+                pathB.pop();
+                pathB.push(branchB.right);
+                pathB.push(branchB.left);
+            } else {
+                final var itemsA = ((Leaf) nodeA).items;
+                final var itemsB = ((Leaf) nodeB).items;
+                final var count = Math.min(itemsA.length - leafOffsetA, itemsB.length - leafOffsetB);
+
+                for (int i = 0; i < count; ++i) {
+                    if (!Objects.equals(itemsA[leafOffsetA + i], itemsB[leafOffsetB + i])) return false;
+                }
+
+                leafOffsetA += count;
+                leafOffsetB += count;
+
+                if (leafOffsetA == itemsA.length) {
+                    pathA.pop();
+                    leafOffsetA = 0;
+                }
+                if (leafOffsetB == itemsB.length) {
+                    pathB.pop();
+                    leafOffsetB = 0;
+                }
+            }
+        }
+
+        while (!pathA.isEmpty() && pathA.peek().itemCount() == 0) pathA.pop();
+        while (!pathB.isEmpty() && pathB.peek().itemCount() == 0) pathB.pop();
+
+        return pathA.isEmpty() && pathB.isEmpty();
+    }
+
+    /**
+     * Finds the ranges where a and b differ, as {start in a, end in a, start in b, end in b}.
+     * <p>
+     * First both trees are taken apart into nodes, biggest first, until every piece is either a node found in both trees
+     * or a leaf found in only one of them. Because parents are always taken apart before their children, a node that's in
+     * both trees is always found while its parents in both trees are being taken apart, so shared nodes are never
+     * descended into. Then the shared pieces are matched up in order and the gaps between matches are the changed ranges,
+     * trimmed of any equal items at their start and end.
+     */
+    private static List<int[]> changedRanges(Node a, Node b) {
+        final var seenA = new IdentityHashMap<Node, Boolean>();
+        final var seenB = new IdentityHashMap<Node, Boolean>();
+        final var shared = new IdentityHashMap<Node, Boolean>();
+        final var piecesA = new ArrayList<DiffPiece>();
+        final var piecesB = new ArrayList<DiffPiece>();
+
+        final var queue = new PriorityQueue<DiffPiece>((x, y) -> x.node.itemCount() != y.node.itemCount()
+                ? Integer.compare(y.node.itemCount(), x.node.itemCount())
+                : Integer.compare(y.node.weight(), x.node.weight()));
+        queue.add(new DiffPiece(a, 0, true));
+        queue.add(new DiffPiece(b, 0, false));
+        seenA.put(a, true);
+        seenB.put(b, true);
+
+        while (!queue.isEmpty()) {
+            final var piece = queue.poll();
+            final var node = piece.node;
+            if (node.itemCount() == 0) continue;
+
+            final var otherSeen = piece.fromA ? seenB : seenA;
+
+            if (shared.containsKey(node) || otherSeen.containsKey(node)) {
+                shared.put(node, true);
+                piece.shared = true;
+                (piece.fromA ? piecesA : piecesB).add(piece);
+            } else if (node instanceof Branch branch) {
+                final var seen = piece.fromA ? seenA : seenB;
+                seen.put(branch.left, true);
+                seen.put(branch.right, true);
+                queue.add(new DiffPiece(branch.left, piece.offset, piece.fromA));
+                queue.add(new DiffPiece(branch.right, piece.offset + branch.left.itemCount(), piece.fromA));
             } else {
-                offsetA += currentLeafA.items.length;
-                offsetB += currentLeafB.items.length;
+                (piece.fromA ? piecesA : piecesB).add(piece);
+            }
+        }
+
+        piecesA.sort(Comparator.comparingInt(piece -> piece.offset));
+        piecesB.sort(Comparator.comparingInt(piece -> piece.offset));
+
+        // where each shared node is in b's pieces
+        final var sharedPositionsB = new IdentityHashMap<Node, ArrayDeque<Integer>>();
+        for (int i = 0; i < piecesB.size(); ++i) {
+            if (piecesB.get(i).shared) {
+                sharedPositionsB.computeIfAbsent(piecesB.get(i).node, key -> new ArrayDeque<>()).add(i);
             }
         }
 
-        final var itemIteratorA = new ItemIterator(a, leafIteratorA, currentLeafA, offsetA, offsetA);
-        final var itemIteratorB = new ItemIterator(b, leafIteratorB, currentLeafB, offsetB, offsetB);
+        final var result = new ArrayList<int[]>();
+        int startA = 0;
+        int startB = 0;
+        int nextB = 0;
+
+        for (final var pieceA : piecesA) {
+            if (!pieceA.shared) continue;
+
+            final var positions = sharedPositionsB.get(pieceA.node);
+            if (positions == null) continue;
+            while (!positions.isEmpty() && positions.peek() < nextB) positions.poll();
+            if (positions.isEmpty()) continue;
+
+            final var positionB = positions.poll();
+            final var pieceB = piecesB.get(positionB);
+
+            addChangedRange(a, startA, pieceA.offset, b, startB, pieceB.offset, result);
+
+            startA = pieceA.offset + pieceA.node.itemCount();
+            startB = pieceB.offset + pieceB.node.itemCount();
+            nextB = positionB + 1;
+        }
+
+        addChangedRange(a, startA, a.itemCount(), b, startB, b.itemCount(), result);
+
+        return result;
+    }
+
+    private static void addChangedRange(Node a, int startA, int endA, Node b, int startB, int endB, List<int[]> result) {
+        while (startA < endA && startB < endB && Objects.equals(valueFrom(a, startA), valueFrom(b, startB))) {
+            ++startA;
+            ++startB;
+        }
+
+        while (startA < endA && startB < endB && Objects.equals(valueFrom(a, endA - 1), valueFrom(b, endB - 1))) {
+            --endA;
+            --endB;
+        }
+
+        if (startA < endA || startB < endB) {
+            result.add(new int[]{startA, endA, startB, endB});
+        }
+    }
+
+    private static Sortedness sortednessOf(Node n, Comparator<Object> comparator) {
+        return sortednessOf(n, comparator, false);
+    }
+
+    /**
+     * @return whether n's items are in order by comparator and its first and last item, with the items read backwards if
+     * backwards is set. It's cached in the node for the last comparator it was asked with (separately for each
+     * direction), and a branch's is put together from its children's, so a new version only checks the nodes on its
+     * changed paths.
+     */
+    private static Sortedness sortednessOf(Node n, Comparator<Object> comparator, boolean backwards) {
+        final var cached = cachedSortedness(n, backwards);
+        if (cached != null && cached.comparator == comparator) return cached;
+
+        final Sortedness result;
+        if (n instanceof Branch b) {
+            final var first = backwards ? b.right : b.left;
+            final var second = backwards ? b.left : b.right;
+
+            if (first.itemCount() == 0) {
+                result = sortednessOf(second, comparator, backwards);
+            } else if (second.itemCount() == 0) {
+                result = sortednessOf(first, comparator, backwards);
+            } else {
+                final var firstSortedness = sortednessOf(first, comparator, backwards);
+                final var secondSortedness = sortednessOf(second, comparator, backwards);
+
+                result = new Sortedness(
+                        comparator,
+                        firstSortedness.sorted && secondSortedness.sorted
+                                && comparator.compare(firstSortedness.last, secondSortedness.first) <= 0,
+                        firstSortedness.first,
+                        secondSortedness.last);
+            }
 
-        while (itemIteratorA.hasNext() && itemIteratorB.hasNext()) {
-            if (!Objects.equals(itemIteratorA.next(), itemIteratorB.next())) return false;
+            if (backwards) b.reversedSortedness = result;
+            else b.sortedness = result;
+        } else {
+            final var l = (Leaf) n;
+            final var items = l.items;
+            final var firstItem = items.length == 0 ? null : items[backwards ? items.length - 1 : 0];
+            final var lastItem = items.length == 0 ? null : items[backwards ? 0 : items.length - 1];
+            result = new Sortedness(comparator, isSorted(items, comparator, backwards), firstItem, lastItem);
+
+            if (backwards) l.reversedSortedness = result;
+            else l.sortedness = result;
         }
 
-        return !(itemIteratorA.hasNext() || itemIteratorB.hasNext());
+        return result;
+    }
+
+    private static Sortedness cachedSortedness(Node n, boolean backwards) {
+        if (n instanceof Branch b) return backwards ? b.reversedSortedness : b.sortedness;
+        final var l = (Leaf) n;
+        return backwards ? l.reversedSortedness : l.sortedness;
+    }
+
+    /**
+     * Caches that every node of n is sorted by comparator, for n that was just sorted. No comparisons, only a walk over
+     * the nodes that don't know yet.
+     */
+    private static Node markedSorted(Node n, Comparator<Object> comparator) {
+        if (n.itemCount() > 0) markSorted(n, comparator);
+        return n;
+    }
+
+    private static Sortedness markSorted(Node n, Comparator<Object> comparator) {
+        if (n instanceof Branch b) {
+            final var cached = b.sortedness;
+            if (cached != null && cached.comparator == comparator) return cached;
+
+            final var left = b.left.itemCount() > 0 ? markSorted(b.left, comparator) : null;
+            final var right = b.right.itemCount() > 0 ? markSorted(b.right, comparator) : null;
+
+            return b.sortedness = new Sortedness(
+                    comparator,
+                    true,
+                    (left != null ? left : right).first,
+                    (right != null ? right : left).last);
+        } else {
+            final var l = (Leaf) n;
+            final var cached = l.sortedness;
+            if (cached != null && cached.comparator == comparator) return cached;
+
+            return l.sortedness = new Sortedness(comparator, true, l.items[0], l.items[l.items.length - 1]);
+        }
     }
 
     private static Node sorted(Node n, Comparator<Object> comparator) {
@@ -750,7 +2069,8 @@ public class PersistentList<T> implements Iterable<T> {
 
 
         if (n instanceof Branch b) {
-            if (isSorted(new ItemsIterable(b), comparator)) return b;
+            // this is what keeps already sorted subtrees from being looked at again further down
+            if (sortednessOf(b, comparator).sorted) return b;
 
             // sort the branches
             final var leftSorted = shallowlyPrunedAndBalanced(sorted(b.left, comparator));
@@ -758,324 +2078,1784 @@ public class PersistentList<T> implements Iterable<T> {
 //            final var leftSorted = sorted(b.left, comparator);
 //            final var rightSorted = sorted(b.right, comparator);
 
-            // skip merging if possible
-            if (leftSorted.itemCount() == 0) {
-                return rightSorted;
-            } else if (rightSorted.itemCount() == 0) {
-                return leftSorted;
-            }
+            return mergedSorted(leftSorted, rightSorted, comparator, false);
+        } else if (n instanceof Leaf l) {
+            if (sortednessOf(l, comparator).sorted) return l;
 
-            // skip merging if possible
-            if (comparator.compare(
-                    valueFrom(leftSorted, leftSorted.itemCount() - 1),
-                    valueFrom(rightSorted, 0)) < 0) {
-                return new Branch(leftSorted, rightSorted);
-            }
+            final var sortedItems = Arrays.copyOf(l.items, l.items.length);
+            Arrays.sort(sortedItems, comparator);
+            return leaf(sortedItems);
+
+//            return leaf(Arrays.stream(l.items).sorted(comparator).toArray());
+        } else throw new NullPointerException();
+    }
 
-            // merge the sorted branches
-            final var sortedItems = merged(
+    /**
+     * Merges two sorted nodes into one sorted node.
+     *
+     * @param parallel whether big merges may be split up and run on the ForkJoinPool
+     */
+    private static Node mergedSorted(Node leftSorted, Node rightSorted, Comparator<Object> comparator, boolean parallel) {
+        // skip merging if possible
+        if (leftSorted.itemCount() == 0) {
+            return rightSorted;
+        } else if (rightSorted.itemCount() == 0) {
+            return leftSorted;
+        }
+
+        // skip merging if possible
+        if (comparator.compare(
+                valueFrom(leftSorted, leftSorted.itemCount() - 1),
+                valueFrom(rightSorted, 0)) < 0) {
+            return branch(leftSorted, rightSorted);
+        }
+
+        // merge the sorted branches
+        final Object[] sortedItems;
+        if (parallel && leftSorted.itemCount() + rightSorted.itemCount() >= PARALLEL_THRESHOLD) {
+            final var leftItems = itemsOf(leftSorted);
+            final var rightItems = itemsOf(rightSorted);
+            sortedItems = new Object[leftItems.length + rightItems.length];
+
+            new MergeTask(
+                    leftItems, 0, leftItems.length,
+                    rightItems, 0, rightItems.length,
+                    sortedItems, 0,
+                    comparator).invoke();
+        } else {
+            sortedItems = merged(
                     new ItemsIterable(leftSorted),
                     new ItemsIterable(rightSorted),
                     comparator);
+        }
+
+        // partition the resulting items into a tree and return that
+        return fromArray(sortedItems);
+    }
+
+    // ==================== Bulk Operations ========================
+    private static Object[] mappedItems(Object[] items, Function<Object, Object> mapper) {
+        if (items.length == 0) return items;
+
+        final var result = new Object[items.length];
+        for (int i = 0; i < items.length; ++i) {
+            result[i] = mapper.apply(items[i]);
+        }
+        return result;
+    }
 
-            // partition the resulting items into a tree and return that
-            return fromArray(sortedItems);
+    private static Node mapped(Node n, Function<Object, Object> mapper) {
+        if (n instanceof Branch b) {
+            return branch(mapped(b.left, mapper), mapped(b.right, mapper));
         } else if (n instanceof Leaf l) {
-            if (isSorted(l.items, comparator)) return l;
+            return l.items.length == 0 ? l : leaf(mappedItems(l.items, mapper));
+        } else throw new NullPointerException();
+    }
 
-            final var sortedItems = Arrays.copyOf(l.items, l.items.length);
-            Arrays.sort(sortedItems, comparator);
-            return new Leaf(sortedItems);
+    /**
+     * @return items itself if every item passes.
+     */
+    private static Object[] filteredItems(Object[] items, Predicate<Object> predicate) {
+        Object[] result = null;
+        var count = 0;
+
+        for (int i = 0; i < items.length; ++i) {
+            final var passes = predicate.test(items[i]);
+
+            if (result == null) {
+                if (passes) continue;
+
+                // the first item that doesn't pass, copy the ones before it
+                result = new Object[items.length - 1];
+                System.arraycopy(items, 0, result, 0, i);
+                count = i;
+            } else if (passes) {
+                result[count++] = items[i];
+            }
+        }
+
+        if (result == null) return items;
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
 
-//            return new Leaf(Arrays.stream(l.items).sorted(comparator).toArray());
+    private static Node filtered(Node n, Predicate<Object> predicate) {
+        if (n instanceof Branch b) {
+            return filteredBranch(b, filtered(b.left, predicate), filtered(b.right, predicate));
+        } else if (n instanceof Leaf l) {
+            final var items = filteredItems(l.items, predicate);
+            if (items == l.items) return l;
+            return items.length == 0 ? EMPTY_LEAF : leaf(items);
         } else throw new NullPointerException();
     }
 
-    // =================== Helpers ===================================
-    public static void indexCheck(int index, int length) {
-        if (index < 0 || length <= index) throw new IndexOutOfBoundsException(index);
+    /**
+     * b itself if nothing was filtered out of it, otherwise its filtered sides joined back together. Joining merges the
+     * leaves where the sides meet when they fit in one, so filtering doesn't leave a tree of tiny leaves behind.
+     */
+    private static Node filteredBranch(Branch b, Node left, Node right) {
+        if (left == b.left && right == b.right) return b;
+
+        return joinedAtLeaves(left, right);
     }
 
-    public static void nullCheck(Object nullable) {
-        if (nullable == null) throw new NullPointerException();
+    private static <U> U reducedItems(Object[] items, boolean backwards, U identity, BiFunction<U, Object, U> accumulator) {
+        var result = identity;
+
+        if (backwards) {
+            for (int i = items.length - 1; i >= 0; --i) {
+                result = accumulator.apply(result, items[i]);
+            }
+        } else {
+            for (final var item : items) {
+                result = accumulator.apply(result, item);
+            }
+        }
+
+        return result;
     }
 
-    public static int hashCodeOf(Object o) {
-        return o == null ? 0 : o.hashCode();
+    private static void forEachIn(Object[] items, boolean backwards, Consumer<Object> action) {
+        if (backwards) {
+            for (int i = items.length - 1; i >= 0; --i) {
+                action.accept(items[i]);
+            }
+        } else {
+            for (final var item : items) {
+                action.accept(item);
+            }
+        }
     }
 
-    public static int hashIterable(Iterable<?> objects) {
-        int result = 0;
+    private static void forEachIn(Node n, boolean backwards, Consumer<Object> action) {
+        final var leafIterator = new LeafIterator(n, backwards);
+        while (leafIterator.hasNext()) {
+            forEachIn(leafIterator.next().items, backwards, action);
+        }
+    }
 
-        for (final var obj : objects) {
-            result = Objects.hash(result, obj);
+    // ==================== Join and Split ========================
+    /**
+     * Two subtrees can hang off the same branch as long as neither has more than this many times the leaves of the other.
+     */
+    private static final int JOIN_BALANCE_RATIO = 3;
+
+    /**
+     * Puts left and right together under one balanced tree. If one is too heavy for the other to hang next to it, the
+     * light one is joined into the inner side of the heavy one, one level down, and the branches on the way back up are
+     * rotated at most twice each. That's the join of weight balanced trees, it costs about the difference in height of the
+     * two trees and never needs more than those rotations.
+     */
+    private static Node joined(Node left, Node right) {
+        if (left.itemCount() == 0) return right;
+        if (right.itemCount() == 0) return left;
+
+        // a leaf is never too heavy, so the heavy side is always a branch
+        if (left.leafCount() > JOIN_BALANCE_RATIO * right.leafCount() && left instanceof Branch l) {
+            return balancedBranch(l.left, joined(l.right, right));
+        } else if (right.leafCount() > JOIN_BALANCE_RATIO * left.leafCount() && right instanceof Branch r) {
+            return balancedBranch(joined(left, r.left), r.right);
+        } else {
+            return branch(left, right);
+        }
+    }
+
+    /**
+     * A branch of left and right, which were balanced with each other before one of them got heavier by a join. Rotates
+     * once, or twice if the inner grandchild is the heavy one, to balance them again.
+     */
+    private static Node balancedBranch(Node left, Node right) {
+        if (right.leafCount() > JOIN_BALANCE_RATIO * left.leafCount() && right instanceof Branch r) {
+            if (r.left.leafCount() < 2 * r.right.leafCount() || !(r.left instanceof Branch rl)) {
+                return branch(branch(left, r.left), r.right);
+            } else {
+                return branch(branch(left, rl.left), branch(rl.right, r.right));
+            }
+        } else if (left.leafCount() > JOIN_BALANCE_RATIO * right.leafCount() && left instanceof Branch l) {
+            if (l.right.leafCount() < 2 * l.left.leafCount() || !(l.right instanceof Branch lr)) {
+                return branch(l.left, branch(l.right, right));
+            } else {
+                return branch(branch(l.left, lr.left), branch(lr.right, right));
+            }
+        } else {
+            return branch(left, right);
+        }
+    }
+
+    /**
+     * Same as {@link #joined(Node, Node)}, but if the last leaf of left and the first leaf of right fit in one leaf they're
+     * merged, so splitting and joining again doesn't leave more and more small leaves behind.
+     */
+    /*package*/ static Node joinedAtLeaves(Node left, Node right) {
+        if (left.itemCount() == 0 || right.itemCount() == 0) return joined(left, right);
+
+        var lastNode = left;
+        while (lastNode instanceof Branch b) lastNode = b.right;
+        var firstNode = right;
+        while (firstNode instanceof Branch b) firstNode = b.left;
+
+        // segments are never merged
+        if (!(lastNode instanceof Leaf last) || !(firstNode instanceof Leaf first)) return joined(left, right);
+        if (last.items.length + first.items.length > LEAF_SIZE) return joined(left, right);
+
+        final var merged = leaf(withInsertion(last.items, last.items.length, first.items));
+        return joined(
+                joined(prefixOf(left, left.itemCount() - last.items.length), merged),
+                suffixOf(right, first.items.length));
+    }
+
+    /**
+     * @return the items in [0, end) of n. Only the nodes on the path to end are touched, the ones left of it are joined
+     * back together on the way up.
+     */
+    /*package*/ static Node prefixOf(Node n, int end) {
+        if (end == n.itemCount()) return n;
+        if (end == 0) return EMPTY_LEAF;
+
+        if (n instanceof Branch b) {
+            final var leftCount = b.left.itemCount();
+
+            if (end <= leftCount) {
+                return prefixOf(b.left, end);
+            } else {
+                return joined(b.left, prefixOf(b.right, end - leftCount));
+            }
+        } else if (n instanceof Leaf l) {
+            return leaf(Arrays.copyOfRange(l.items, 0, end));
+        } else if (n instanceof Segment s) {
+            return s.sliced(0, end);
+        } else {
+            throw new NullPointerException();
+        }
+    }
+
+    /**
+     * @return the items in [start, n.itemCount()) of n, see {@link #prefixOf(Node, int)}.
+     */
+    /*package*/ static Node suffixOf(Node n, int start) {
+        if (start == 0) return n;
+        if (start == n.itemCount()) return EMPTY_LEAF;
+
+        if (n instanceof Branch b) {
+            final var leftCount = b.left.itemCount();
+
+            if (start >= leftCount) {
+                return suffixOf(b.right, start - leftCount);
+            } else {
+                return joined(suffixOf(b.left, start), b.right);
+            }
+        } else if (n instanceof Leaf l) {
+            return leaf(Arrays.copyOfRange(l.items, start, l.items.length));
+        } else if (n instanceof Segment s) {
+            return s.sliced(start, s.itemCount());
+        } else {
+            throw new NullPointerException();
+        }
+    }
+
+    // ==================== Sorted Lists ========================
+    /**
+     * How many runs {@link #mergedRuns(Node, Node, Comparator, boolean)} cuts off before it checks if they're long enough to be
+     * worth it.
+     */
+    private static final int MERGE_RUNS_BEFORE_CHECK = 64;
+
+    /**
+     * @return how many items of n, which is sorted by comparator, are less than value. With backwards set the items of n
+     * are read from the right, like a reversed list reads its stored tree.
+     */
+    private static int lowerBound(Node n, Object value, Comparator<Object> comparator, boolean backwards) {
+        return bound(n, value, comparator, false, backwards);
+    }
+
+    /**
+     * @return how many items of n, which is sorted by comparator, are less than or equal to value.
+     */
+    private static int upperBound(Node n, Object value, Comparator<Object> comparator, boolean backwards) {
+        return bound(n, value, comparator, true, backwards);
+    }
+
+    /**
+     * Goes to the second child whenever its first item is still below value (or equal, if orEqual), since then the whole
+     * first child is too. Backwards the second child is the left one.
+     */
+    private static int bound(Node n, Object value, Comparator<Object> comparator, boolean orEqual, boolean backwards) {
+        var offset = 0;
+
+        while (n instanceof Branch b) {
+            final var first = backwards ? b.right : b.left;
+            final var second = backwards ? b.left : b.right;
+
+            if (second.itemCount() == 0) {
+                n = first;
+            } else if (first.itemCount() == 0) {
+                n = second;
+            } else {
+                final var order = comparator.compare(firstItemOf(second, comparator, backwards), value);
+
+                if (order < 0 || (orEqual && order == 0)) {
+                    offset += first.itemCount();
+                    n = second;
+                } else {
+                    n = first;
+                }
+            }
+        }
+
+        final var items = ((Leaf) n).items;
+        var low = 0;
+        var high = items.length;
+        while (low < high) {
+            final var middle = (low + high) >>> 1;
+            final var order = comparator.compare(items[backwards ? items.length - 1 - middle : middle], value);
+
+            if (order < 0 || (orEqual && order == 0)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return offset + low;
+    }
+
+    /**
+     * The first item of n (the last one it stores if backwards), from its cached {@link Sortedness} if it has one for
+     * comparator.
+     */
+    private static Object firstItemOf(Node n, Comparator<Object> comparator, boolean backwards) {
+        final var cached = cachedSortedness(n, backwards);
+        if (cached != null && cached.comparator == comparator) return cached.first;
+
+        return valueFrom(n, backwards ? n.itemCount() - 1 : 0);
+    }
+
+    /**
+     * Merges a and b, both sorted by comparator, by taking turns cutting off the run at the start of one that comes
+     * before the first item of the other. Ties go to a. Once the runs get shorter than a leaf it's cheaper to merge the
+     * rest item by item, so that's what's done then.
+     * <p>
+     * With backwards set a, b and the result are all read from the right, so the runs are cut off the right ends and
+     * added to the left end of the result.
+     */
+    private static Node mergedRuns(Node a, Node b, Comparator<Object> comparator, boolean backwards) {
+        var result = (Node) EMPTY_LEAF;
+        var runCount = 0;
+
+        while (a.itemCount() > 0 && b.itemCount() > 0) {
+            if (runCount >= MERGE_RUNS_BEFORE_CHECK && result.itemCount() < runCount * LEAF_SIZE) {
+                final var itemsOfA = itemsOf(a);
+                final var itemsOfB = itemsOf(b);
+                if (backwards) {
+                    reverse(itemsOfA);
+                    reverse(itemsOfB);
+                }
+
+                // b first in merged so ties go to a
+                final var rest = merged(Arrays.asList(itemsOfB), Arrays.asList(itemsOfA), comparator);
+                if (backwards) reverse(rest);
+                return withRun(result, fromArray(rest), backwards);
+            }
+
+            final var firstOfA = firstItemOf(a, comparator, backwards);
+            final var firstOfB = firstItemOf(b, comparator, backwards);
+
+            if (comparator.compare(firstOfB, firstOfA) < 0) {
+                final var end = lowerBound(b, firstOfA, comparator, backwards);
+                result = withRun(result, firstItems(b, end, backwards), backwards);
+                b = withoutFirstItems(b, end, backwards);
+            } else {
+                final var end = upperBound(a, firstOfB, comparator, backwards);
+                result = withRun(result, firstItems(a, end, backwards), backwards);
+                a = withoutFirstItems(a, end, backwards);
+            }
+            ++runCount;
+        }
+
+        return withRun(withRun(result, a, backwards), b, backwards);
+    }
+
+    /**
+     * @return the first count items of n, read from the right if backwards.
+     */
+    private static Node firstItems(Node n, int count, boolean backwards) {
+        return backwards ? suffixOf(n, n.itemCount() - count) : prefixOf(n, count);
+    }
+
+    private static Node withoutFirstItems(Node n, int count, boolean backwards) {
+        return backwards ? prefixOf(n, n.itemCount() - count) : suffixOf(n, count);
+    }
+
+    /**
+     * @return result followed by run, which both are read from the right if backwards.
+     */
+    private static Node withRun(Node result, Node run, boolean backwards) {
+        return backwards ? joinedAtLeaves(run, result) : joinedAtLeaves(result, run);
+    }
+
+    // ==================== Selection ========================
+    /**
+     * {@link #nthElement(int, Comparator)} uses a heap if it has to keep less than this fraction of the items, a heap of
+     * more of them is slower than copying everything.
+     */
+    private static final int NTH_ELEMENT_HEAP_FRACTION = 16;
+
+    /**
+     * @return a heap of the k best items of n, read from the right if backwards.
+     */
+    private static BoundedHeap selected(Node n, boolean backwards, int k, Comparator<Object> comparator, boolean greatest) {
+        return invoked(new SelectTask(n, backwards, 0, new BoundedHeap(k, comparator, greatest)), n);
+    }
+
+    /**
+     * Quickselect over the positions of items, ordered by comparator and then by position like a stable sort, so the
+     * items themselves don't move and there are no ties.
+     */
+    private static Object nthOf(Object[] items, int n, Comparator<Object> comparator) {
+        final var order = new int[items.length];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+
+        var low = 0;
+        var high = order.length - 1;
+        while (low < high) {
+            final var pivot = order[(low + high) >>> 1];
+            var i = low;
+            var j = high;
+
+            while (i <= j) {
+                while (precedes(items, order[i], pivot, comparator)) ++i;
+                while (precedes(items, pivot, order[j], comparator)) --j;
+
+                if (i <= j) {
+                    final var temp = order[i];
+                    order[i] = order[j];
+                    order[j] = temp;
+                    ++i;
+                    --j;
+                }
+            }
+
+            if (n <= j) {
+                high = j;
+            } else if (n >= i) {
+                low = i;
+            } else {
+                // between j and i there's only the pivot
+                break;
+            }
+        }
+
+        return items[order[n]];
+    }
+
+    private static boolean precedes(Object[] items, int a, int b, Comparator<Object> comparator) {
+        final var order = comparator.compare(items[a], items[b]);
+        return order < 0 || (order == 0 && a < b);
+    }
+
+    /**
+     * Offers the items of n, which start at position offset of the list, to heap. If backwards n's items are read from
+     * the right.
+     */
+    private static void offerItems(Node n, boolean backwards, int offset, BoundedHeap heap) {
+        final var cached = cachedSortedness(n, backwards);
+
+        if (!heap.greatest && cached != null && cached.comparator == heap.comparator && cached.sorted) {
+            // every item after one that doesn't make it is bigger and later, so it doesn't make it either
+            final var leafIterator = new LeafIterator(n, backwards);
+            while (leafIterator.hasNext()) {
+                final var items = leafIterator.next().items;
+                for (int i = 0; i < items.length; ++i) {
+                    if (!heap.offer(items[backwards ? items.length - 1 - i : i], offset + i)) return;
+                }
+                offset += items.length;
+            }
+        } else if (n instanceof Branch b) {
+            final var first = backwards ? b.right : b.left;
+            offerItems(first, backwards, offset, heap);
+            offerItems(backwards ? b.left : b.right, backwards, offset + first.itemCount(), heap);
+        } else {
+            final var items = ((Leaf) n).items;
+            for (int i = 0; i < items.length; ++i) {
+                heap.offer(items[backwards ? items.length - 1 - i : i], offset + i);
+            }
+        }
+    }
+
+    // ==================== Equality Cache ========================
+    /**
+     * How many pairs of lists the equality cache remembers, the least recently used ones are forgotten first.
+     */
+    private static final int EQUALITY_CACHE_SIZE = 4096;
+    private static final EqualityCache EQUALITY_CACHE = new EqualityCache(EQUALITY_CACHE_SIZE);
+
+    /**
+     * @return how many times {@link #equals(Object)} found the answer in the equality cache.
+     */
+    public static long equalityCacheHits() {
+        return EQUALITY_CACHE.hits.sum();
+    }
+
+    /**
+     * @return how many times {@link #equals(Object)} looked in the equality cache and had to compare the items.
+     */
+    public static long equalityCacheMisses() {
+        return EQUALITY_CACHE.misses.sum();
+    }
+
+    // ==================== Interning ========================
+    private static final NodeInterner INTERNER = new NodeInterner();
+    private static volatile boolean interning = false;
+
+    /**
+     * Turns the global node intern table on or off. While it's on every leaf and branch PersistentList makes is swapped
+     * for an equal one that's still alive, if there is one, so lists built from the same items share their nodes and
+     * comparing them is mostly identity checks. It costs a hash of every new leaf and a table lookup for every new node,
+     * which is why it's off by default. Turning it off keeps what's already in the table.
+     * <p>
+     * Only leaves of values (strings, boxed primitives, BigInteger, BigDecimal, enums and nulls) are interned, a leaf of
+     * other items keeps its own instances even when an equal leaf is in the table.
+     */
+    public static void setInterning(boolean enabled) {
+        interning = enabled;
+    }
+
+    public static boolean isInterning() {
+        return interning;
+    }
+
+    /**
+     * @return how many nodes are in the intern table, including ones that died but weren't cleaned up yet.
+     */
+    public static int internedNodeCount() {
+        return INTERNER.size();
+    }
+
+    /**
+     * @return this list with every node of its tree swapped for its interned equal, for lists made before
+     * {@link #setInterning(boolean)} was turned on. Works whether interning is on or not.
+     */
+    public PersistentList<T> interned() {
+        final var internedRoot = internedNode(root);
+        return internedRoot == root ? this : new PersistentList<>(head, internedRoot, tail, reversed);
+    }
+
+    private static Node internedNode(Node n) {
+        if (n instanceof Branch b) {
+            final var left = internedNode(b.left);
+            final var right = internedNode(b.right);
+
+            return INTERNER.intern(left == b.left && right == b.right ? b : new Branch(left, right));
+        } else {
+            return INTERNER.intern((Leaf) n);
+        }
+    }
+
+    /*package*/ static Leaf leaf(Object[] items) {
+        if (Metrics.ENABLED) Metrics.leavesCreated.increment();
+
+        final var result = new Leaf(items);
+        return interning ? INTERNER.intern(result) : result;
+    }
+
+    /*package*/ static Branch branch(Node left, Node right) {
+        if (Metrics.ENABLED) Metrics.branchesCreated.increment();
+
+        final var result = new Branch(left, right);
+        return interning ? INTERNER.intern(result) : result;
+    }
+
+    // =================== Helpers ===================================
+    public static void indexCheck(int index, int length) {
+        if (index < 0 || length <= index) throw new IndexOutOfBoundsException(index);
+    }
+
+    public static void nullCheck(Object nullable) {
+        if (nullable == null) throw new NullPointerException();
+    }
+
+    public static int hashCodeOf(Object o) {
+        return o == null ? 0 : o.hashCode();
+    }
+
+    /**
+     * Polynomial hash of the items, without List.hashCode's leading 31^length term: the sum of hash(items[i]) * 31^(length - 1 - i).
+     */
+    static int orderedHash(Object[] items) {
+        int result = 0;
+
+        for (final var item : items) {
+            result = 31 * result + hashCodeOf(item);
+        }
+
+        return result;
+    }
+
+    /**
+     * 31^(2^i) for every i, to put together any power of 31 with at most 31 multiplications.
+     */
+    private static final int[] POWERS_OF_31 = new int[31];
+
+    static {
+        POWERS_OF_31[0] = 31;
+        for (int i = 1; i < POWERS_OF_31.length; ++i) {
+            POWERS_OF_31[i] = POWERS_OF_31[i - 1] * POWERS_OF_31[i - 1];
+        }
+    }
+
+    /**
+     * 31^exponent, overflowing the same way the hash computations do.
+     */
+    static int powerOf31(int exponent) {
+        int result = 1;
+
+        for (int i = 0; exponent != 0; ++i, exponent >>>= 1) {
+            if ((exponent & 1) != 0) result *= POWERS_OF_31[i];
+        }
+
+        return result;
+    }
+
+    public static int hashIterable(Iterable<?> objects) {
+        int result = 0;
+
+        for (final var obj : objects) {
+            result = Objects.hash(result, obj);
+        }
+
+        return result;
+    }
+
+    /**
+     * Generates a hash that isn't well distributed but at least doesn't care about order.
+     */
+    public static int nonOrderedHash(Object a, Object b) {
+//        return hashCodeOf(a) + hashCodeOf(b);
+        return hashCodeOf(a) ^ hashCodeOf(b);
+//        return 31 * hashCodeOf(a) + 31 * hashCodeOf(b);
+//        final var hashA = hashCodeOf(a);
+//        final var hashB = hashCodeOf(b);
+//        return hashA * hashB * 31 + hashA + hashB; // breaks with lots of values
+    }
+
+    /**
+     * Generates a hash that isn't well distributes but at least doesn't care about order.
+     */
+    public static int nonOrderedHash(Object[] objects) {
+        int result = 0;
+        for (final var obj : objects) {
+            result = nonOrderedHash(result, obj);
+        }
+
+        return result;
+    }
+
+    private static Object[] withInsertion(Object[] original, int index, Object[] values) {
+        if (values == null || values.length == 0) return original;
+        indexCheck(index, original.length + 1);
+        nullCheck(original);
+
+        final var result = new Object[original.length + values.length];
+
+        for (int i = 0; i < index; ++i) {
+            result[i] = original[i];
+        }
+
+        for (int i = index; i < index + values.length; ++i) {
+            result[i] = values[i - index];
+        }
+
+        for (int i = index + values.length; i < original.length + values.length; ++i) {
+            result[i] = original[i - values.length];
+        }
+
+        return result;
+    }
+
+    private static Object[] withReplacement(Object[] original, int start, int end, Object[] src, int srcStart) {
+        final var length = end - start;
+        final var result = new Object[original.length];
+
+        for (int i = 0; i < start; ++i) {
+            result[i] = original[i];
+        }
+
+        boolean containedChange = false;
+        for (int i = 0; i < length; ++i) {
+            final var indexO = i + start;
+            final var indexS = i + srcStart;
+            final var newItem = src[indexS];
+
+            if (!Objects.equals(original[indexO], newItem)) {
+                containedChange = true;
+            }
+
+            result[indexO] = newItem;
+        }
+
+        for (int i = end; i < original.length; ++i) {
+            result[i] = original[i];
+        }
+
+        if (containedChange) {
+            return result;
+        } else {
+            return original;
+        }
+    }
+
+    private static Object[] withoutRange(Object[] original, int start, int length) {
+        if (length <= 0) return original;
+        if (start == 0 && length == original.length) return EMPTY_ARRAY;
+        indexCheck(start, original.length);
+        if (start + length > original.length) throw new IndexOutOfBoundsException(start + length);
+
+        final var result = new Object[original.length - length];
+
+        for (int i = 0; i < start; ++i) {
+            result[i] = original[i];
+        }
+
+        for (int i = start + length; i < original.length; ++i) {
+            result[i - length] = original[i];
+        }
+
+        return result;
+    }
+
+    private static Object[][] partition(Object[] array, int size) {
+        nullCheck(array);
+        if (size < 1) throw new IllegalArgumentException("Size must be greater than 0.");
+
+        if (size >= array.length) {
+            return new Object[][]{array};
+        }
+
+        final var remainder = array.length % size;
+        final var wholeCount = array.length / size;
+
+        final var result = new Object[wholeCount + (remainder > 0 ? 1 : 0)][];
+
+        for (int i = 0; i < wholeCount; ++i) {
+            final var index = i * size;
+            result[i] = Arrays.copyOfRange(array, index, index + size);
+        }
+
+        if (remainder > 0) {
+            final var index = (wholeCount) * size;
+            result[wholeCount] = Arrays.copyOfRange(array, index, index + remainder);
+        }
+
+        return result;
+    }
+
+    /**
+     * Produces a balanced node tree from a list of arrays. The arrays become the items in the leafs.
+     *
+     * @param partitions The partitions array to draw from
+     * @param index      index in the partitions array
+     * @param count      the number of partitions
+     */
+    private static Node fromPartitions(Object[][] partitions, int index, int count) {
+        if (count <= 0) {
+            return EMPTY_LEAF;
+        } else if (count == 1) {
+            return leaf(partitions[index]);
+        } else {
+            final var remainder = count % 2;
+            final var leftCount = (count / 2) + (remainder > 0 ? 1 : 0);
+            final var rightCount = count / 2;
+
+            return branch(
+                    fromPartitions(partitions, index, leftCount),
+                    fromPartitions(partitions, index + leftCount, rightCount));
+        }
+    }
+
+    /**
+     * Produces a balanced node tree from an array of leaves.
+     *
+     * @param leaves the leaves array to draw from
+     * @param index  index in the leaves array
+     * @param count  the number of leaves
+     */
+    private static Node fromLeaves(Leaf[] leaves, int index, int count) {
+        if (count <= 0) {
+            return EMPTY_LEAF;
+        } else if (count == 1) {
+            return leaves[index];
+        } else {
+            final var remainder = count % 2;
+            final var leftCount = (count / 2) + (remainder > 0 ? 1 : 0);
+            final var rightCount = count / 2;
+
+            return branch(
+                    fromLeaves(leaves, index, leftCount),
+                    fromLeaves(leaves, index + leftCount, rightCount));
+        }
+    }
+
+    private static Node fromPartitions(Object[][] partitions) {
+        return fromPartitions(partitions, 0, partitions.length);
+    }
+
+    /*package*/ static Node fromArray(Object[] array) {
+        if (array.length <= LEAF_SIZE) {
+            return leaf(array);
+        } else {
+            return fromPartitions(
+                    partition(array, LEAF_SIZE));
+        }
+    }
+
+    private static Node fromIterable(Iterable<Object> iterable) {
+        return fromArray(StreamSupport.stream(iterable.spliterator(), false).toArray());
+    }
+
+    /**
+     * ~ (!!! only call if a's items are equal to b's items !!!) ~
+     */
+    private static void consolidateCaches(Branch a, Branch b) {
+        if (a.quickHashCache == null) {
+            if (b.quickHashCache != null) {
+                a.quickHashCache = b.quickHashCache;
+            }
+        } else {
+            b.quickHashCache = a.quickHashCache;
+        }
+    }
+
+    private static Object[] merged(Iterable<Object> a, Iterable<Object> b, Comparator<Object> comparator) {
+        final var enuA = new Enumerator<>(a.iterator());
+        final var enuB = new Enumerator<>(b.iterator());
+        final var result = new ArrayList<>();
+
+        enuA.moveNext();
+        enuB.moveNext();
+
+        while (!enuA.complete() && !enuB.complete()) {
+            if (comparator.compare(enuA.current(), enuB.current()) < 0) {
+                result.add(enuA.current());
+                enuA.moveNext();
+            } else {
+                result.add(enuB.current());
+                enuB.moveNext();
+            }
+        }
+
+        if (!enuA.complete()) {
+            do {
+                result.add(enuA.current());
+            } while (enuA.moveNext());
+        } else if (!enuB.complete()) {
+            do {
+                result.add(enuB.current());
+            } while (enuB.moveNext());
+        }
+
+        return result.toArray();
+    }
+
+    /**
+     * Index of the first item in array[start, end) that is greater than the given item.
+     */
+    private static int upperBound(Object[] array, int start, int end, Object item, Comparator<Object> comparator) {
+        while (start < end) {
+            final var middle = (start + end) >>> 1;
+
+            if (comparator.compare(array[middle], item) <= 0) {
+                start = middle + 1;
+            } else {
+                end = middle;
+            }
+        }
+        return start;
+    }
+
+    private static Object[] itemsOf(Node n) {
+        final var result = new Object[n.itemCount()];
+        final var leafIterator = new LeafIterator(n);
+
+        int index = 0;
+        while (leafIterator.hasNext()) {
+            final var leaf = leafIterator.next();
+            System.arraycopy(leaf.items, 0, result, index, leaf.items.length);
+            index += leaf.items.length;
+        }
+
+        return result;
+    }
+
+    private static boolean isSorted(Object[] array, Comparator<Object> comparator) {
+        return isSorted(array, comparator, false);
+    }
+
+    private static boolean isSorted(Object[] array, Comparator<Object> comparator, boolean backwards) {
+        for (int i = 1; i < array.length; ++i) {
+            final var order = comparator.compare(array[i - 1], array[i]);
+            if (backwards ? order < 0 : order > 0) return false;
+        }
+        return true;
+    }
+
+    private static <T> void reverse(T[] array) {
+        for (int i = 0; i < array.length / 2; ++i) {
+            final var temp = array[i];
+            array[i] = array[array.length - 1 - i];
+            array[array.length - 1 - i] = temp;
+        }
+    }
+
+    /**
+     * Mirror image of n, which is as balanced as n is.
+     */
+    private static Node reversedNode(Node n) {
+        if (n instanceof Branch b) {
+            return branch(reversedNode(b.right), reversedNode(b.left));
+        } else if (n instanceof Leaf l) {
+            return l.items.length == 0 ? l : leaf(reversed(l.items));
+        } else {
+            throw new NullPointerException();
+        }
+    }
+
+    /**
+     * The {@link Node#quickHash()} that n would have with its items backwards, cached in the node like quickHash is.
+     */
+    private static int reversedHashOf(Node n) {
+        if (n instanceof Branch b) {
+            var result = b.reversedHashCache;
+            if (result == null) {
+                b.reversedHashCache = result = reversedHashOf(b.right) * powerOf31(b.left.itemCount()) + reversedHashOf(b.left);
+            }
+            return result;
+        } else if (n instanceof Leaf l) {
+            var result = l.reversedHashCache;
+            if (result == null) {
+                l.reversedHashCache = result = reversedOrderedHash(l.items);
+            }
+            return result;
+        } else {
+            throw new NullPointerException();
+        }
+    }
+
+    private static int reversedOrderedHash(Object[] items) {
+        int result = 0;
+
+        for (int i = items.length - 1; i >= 0; --i) {
+            result = 31 * result + hashCodeOf(items[i]);
+        }
+
+        return result;
+    }
+
+    private static Object[] reversed(Object[] array) {
+        final var result = new Object[array.length];
+        for (int i = 0; i < array.length; ++i) {
+            result[result.length - 1 - i] = array[i];
+        }
+        return result;
+    }
+
+    /**
+     * Runs task on the common ForkJoinPool if node is big enough to be split between threads, and right here otherwise.
+     * Under {@link #PARALLEL_THRESHOLD} items the task doesn't fork anyway, so the pool would only add the hand-off to
+     * one of its threads and back.
+     */
+    private static <R> R invoked(ForkJoinTask<R> task, Node node) {
+        return node.itemCount() < PARALLEL_THRESHOLD ? task.invoke() : ForkJoinPool.commonPool().invoke(task);
+    }
+
+    // ======================== Inner Classes ===============================
+    private static class ItemsIterable implements Iterable<Object> {
+        private final Node node;
+
+        public ItemsIterable(Node node) {
+            this.node = node;
+        }
+
+        public Iterator<Object> iterator() {
+            return new ItemIterator(node);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class SortTask extends RecursiveTask<Node> {
+        private final Node node;
+        private final Comparator<Object> comparator;
+
+        SortTask(Node node, Comparator<Object> comparator) {
+            this.node = node;
+            this.comparator = comparator;
+        }
+
+        @Override
+        protected Node compute() {
+            if (node.itemCount() < PARALLEL_THRESHOLD || !(node instanceof Branch b)) {
+                return sorted(node, comparator);
+            }
+
+            if (sortednessOf(b, comparator).sorted) return b;
+
+            // sort the branches
+            final var leftTask = new SortTask(b.left, comparator);
+            leftTask.fork();
+            final var rightSorted = shallowlyPrunedAndBalanced(new SortTask(b.right, comparator).compute());
+            final var leftSorted = shallowlyPrunedAndBalanced(leftTask.join());
+
+            return mergedSorted(leftSorted, rightSorted, comparator, true);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class MapTask extends RecursiveTask<Node> {
+        private final Node node;
+        private final Function<Object, Object> mapper;
+
+        MapTask(Node node, Function<Object, Object> mapper) {
+            this.node = node;
+            this.mapper = mapper;
+        }
+
+        @Override
+        protected Node compute() {
+            if (node.itemCount() < PARALLEL_THRESHOLD || !(node instanceof Branch b)) {
+                return mapped(node, mapper);
+            }
+
+            final var leftTask = new MapTask(b.left, mapper);
+            leftTask.fork();
+            final var right = new MapTask(b.right, mapper).compute();
+
+            return branch(leftTask.join(), right);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class FilterTask extends RecursiveTask<Node> {
+        private final Node node;
+        private final Predicate<Object> predicate;
+
+        FilterTask(Node node, Predicate<Object> predicate) {
+            this.node = node;
+            this.predicate = predicate;
+        }
+
+        @Override
+        protected Node compute() {
+            if (node.itemCount() < PARALLEL_THRESHOLD || !(node instanceof Branch b)) {
+                return filtered(node, predicate);
+            }
+
+            final var leftTask = new FilterTask(b.left, predicate);
+            leftTask.fork();
+            final var right = new FilterTask(b.right, predicate).compute();
+
+            return filteredBranch(b, leftTask.join(), right);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class ReduceTask<U> extends RecursiveTask<U> {
+        private final Node node;
+        private final boolean backwards;
+        private final U identity;
+        private final BiFunction<U, Object, U> accumulator;
+        private final BinaryOperator<U> combiner;
+
+        ReduceTask(Node node, boolean backwards, U identity, BiFunction<U, Object, U> accumulator, BinaryOperator<U> combiner) {
+            this.node = node;
+            this.backwards = backwards;
+            this.identity = identity;
+            this.accumulator = accumulator;
+            this.combiner = combiner;
+        }
+
+        @Override
+        protected U compute() {
+            if (node.itemCount() < PARALLEL_THRESHOLD || !(node instanceof Branch b)) {
+                var result = identity;
+
+                final var leafIterator = new LeafIterator(node, backwards);
+                while (leafIterator.hasNext()) {
+                    result = reducedItems(leafIterator.next().items, backwards, result, accumulator);
+                }
+                return result;
+            }
+
+            final var first = backwards ? b.right : b.left;
+            final var second = backwards ? b.left : b.right;
+
+            final var firstTask = new ReduceTask<>(first, backwards, identity, accumulator, combiner);
+            firstTask.fork();
+            final var secondResult = new ReduceTask<>(second, backwards, identity, accumulator, combiner).compute();
+
+            return combiner.apply(firstTask.join(), secondResult);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class ForEachTask extends RecursiveAction {
+        private final Node node;
+        private final Consumer<Object> action;
+
+        ForEachTask(Node node, Consumer<Object> action) {
+            this.node = node;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (node.itemCount() < PARALLEL_THRESHOLD || !(node instanceof Branch b)) {
+                forEachIn(node, false, action);
+                return;
+            }
+
+            final var leftTask = new ForEachTask(b.left, action);
+            leftTask.fork();
+            new ForEachTask(b.right, action).compute();
+            leftTask.join();
+        }
+    }
+
+    /**
+     * Collects the best items of a subtree into a heap, the children of big branches into heaps of their own in parallel
+     * which are then poured into one.
+     */
+    @SuppressWarnings("serial")
+    private static class SelectTask extends RecursiveTask<BoundedHeap> {
+        private final Node node;
+        /**
+         * Read node from the right, see {@link #offerItems(Node, boolean, int, BoundedHeap)}.
+         */
+        private final boolean backwards;
+        private final int offset;
+        private final BoundedHeap heap;
+
+        SelectTask(Node node, boolean backwards, int offset, BoundedHeap heap) {
+            this.node = node;
+            this.backwards = backwards;
+            this.offset = offset;
+            this.heap = heap;
         }
 
-        return result;
-    }
+        @Override
+        protected BoundedHeap compute() {
+            if (node.itemCount() < PARALLEL_THRESHOLD || !(node instanceof Branch b)) {
+                offerItems(node, backwards, offset, heap);
+                return heap;
+            }
 
-    /**
-     * Generates a hash that isn't well distributed but at least doesn't care about order.
-     */
-    public static int nonOrderedHash(Object a, Object b) {
-//        return hashCodeOf(a) + hashCodeOf(b);
-        return hashCodeOf(a) ^ hashCodeOf(b);
-//        return 31 * hashCodeOf(a) + 31 * hashCodeOf(b);
-//        final var hashA = hashCodeOf(a);
-//        final var hashB = hashCodeOf(b);
-//        return hashA * hashB * 31 + hashA + hashB; // breaks with lots of values
+            final var first = backwards ? b.right : b.left;
+            final var firstTask = new SelectTask(first, backwards, offset, heap.emptyCopy());
+            firstTask.fork();
+            final var second = new SelectTask(backwards ? b.left : b.right, backwards, offset + first.itemCount(), heap).compute();
+
+            second.offerAll(firstTask.join());
+            return second;
+        }
     }
 
     /**
-     * Generates a hash that isn't well distributes but at least doesn't care about order.
+     * The best k items it was offered, by comparator and then by position in the list, the same order a stable sort puts
+     * them in. Best is smallest, or greatest if greatest is set. It's a heap with the
+     * worst of the kept items on top, which makes most offers a single comparison once it's full.
      */
-    public static int nonOrderedHash(Object[] objects) {
-        int result = 0;
-        for (final var obj : objects) {
-            result = nonOrderedHash(result, obj);
+    private static class BoundedHeap {
+        final Comparator<Object> comparator;
+        final boolean greatest;
+        private final Object[] items;
+        private final int[] positions;
+        private int size = 0;
+
+        BoundedHeap(int capacity, Comparator<Object> comparator, boolean greatest) {
+            this.comparator = comparator;
+            this.greatest = greatest;
+            this.items = new Object[capacity];
+            this.positions = new int[capacity];
         }
 
-        return result;
-    }
+        BoundedHeap emptyCopy() {
+            return new BoundedHeap(items.length, comparator, greatest);
+        }
 
-    private static Object[] withInsertion(Object[] original, int index, Object[] values) {
-        if (values == null || values.length == 0) return original;
-        indexCheck(index, original.length + 1);
-        nullCheck(original);
+        /**
+         * @return whether item was kept.
+         */
+        boolean offer(Object item, int position) {
+            if (size < items.length) {
+                items[size] = item;
+                positions[size] = position;
+                siftUp(size++);
+                return true;
+            }
 
-        final var result = new Object[original.length + values.length];
+            if (!isBetter(item, position, 0)) return false;
 
-        for (int i = 0; i < index; ++i) {
-            result[i] = original[i];
+            items[0] = item;
+            positions[0] = position;
+            siftDown(0);
+            return true;
         }
 
-        for (int i = index; i < index + values.length; ++i) {
-            result[i] = values[i - index];
+        void offerAll(BoundedHeap other) {
+            for (int i = 0; i < other.size; ++i) {
+                offer(other.items[i], other.positions[i]);
+            }
         }
 
-        for (int i = index + values.length; i < original.length + values.length; ++i) {
-            result[i] = original[i - values.length];
+        /**
+         * @return the worst of the kept items, the k-th best if k items were offered.
+         */
+        Object worst() {
+            return items[0];
         }
 
-        return result;
-    }
+        /**
+         * @return the kept items, best first. Empties the heap.
+         */
+        Object[] sortedItems() {
+            final var result = new Object[size];
+
+            while (size > 0) {
+                result[size - 1] = items[0];
+                --size;
+                items[0] = items[size];
+                positions[0] = positions[size];
+                items[size] = null;
+                siftDown(0);
+            }
 
-    private static Object[] withReplacement(Object[] original, int start, int end, Object[] src, int srcStart) {
-        final var length = end - start;
-        final var result = new Object[original.length];
+            return result;
+        }
 
-        for (int i = 0; i < start; ++i) {
-            result[i] = original[i];
+        private boolean isBetter(Object item, int position, int than) {
+            final var order = comparator.compare(item, items[than]);
+            if (order != 0) return greatest ? order > 0 : order < 0;
+
+            // in a stable sort the later of two equal items is the greater one
+            return greatest ? position > positions[than] : position < positions[than];
         }
 
-        boolean containedChange = false;
-        for (int i = 0; i < length; ++i) {
-            final var indexO = i + start;
-            final var indexS = i + srcStart;
-            final var newItem = src[indexS];
+        private void siftUp(int index) {
+            while (index > 0) {
+                final var parent = (index - 1) / 2;
+                // the worse one goes up
+                if (!isBetter(items[parent], positions[parent], index)) return;
 
-            if (!Objects.equals(original[indexO], newItem)) {
-                containedChange = true;
+                swap(index, parent);
+                index = parent;
             }
-
-            result[indexO] = newItem;
         }
 
-        for (int i = end; i < original.length; ++i) {
-            result[i] = original[i];
+        private void siftDown(int index) {
+            while (true) {
+                final var left = 2 * index + 1;
+                if (left >= size) return;
+
+                final var right = left + 1;
+                final var worseChild = right < size && isBetter(items[left], positions[left], right) ? right : left;
+                if (!isBetter(items[index], positions[index], worseChild)) return;
+
+                swap(index, worseChild);
+                index = worseChild;
+            }
         }
 
-        if (containedChange) {
-            return result;
-        } else {
-            return original;
+        private void swap(int a, int b) {
+            final var item = items[a];
+            items[a] = items[b];
+            items[b] = item;
+
+            final var position = positions[a];
+            positions[a] = positions[b];
+            positions[b] = position;
         }
     }
 
-    private static Object[] withoutRange(Object[] original, int start, int length) {
-        if (length <= 0) return original;
-        if (start == 0 && length == original.length) return EMPTY_ARRAY;
-        indexCheck(start, original.length);
-        if (start + length > original.length) throw new IndexOutOfBoundsException(start + length);
+    /**
+     * Merges a[aStart, aEnd) and b[bStart, bEnd) into destination starting at destinationStart. Big merges are split by
+     * taking the middle item of the longer run, finding where it goes in the other run and merging both sides in parallel.
+     * Ties go to b first, the same as {@link #merged(Iterable, Iterable, Comparator)}.
+     */
+    @SuppressWarnings("serial")
+    private static class MergeTask extends RecursiveAction {
+        private final Object[] a;
+        private final int aStart;
+        private final int aEnd;
+        private final Object[] b;
+        private final int bStart;
+        private final int bEnd;
+        private final Object[] destination;
+        private final int destinationStart;
+        private final Comparator<Object> comparator;
+
+        MergeTask(Object[] a, int aStart, int aEnd,
+                  Object[] b, int bStart, int bEnd,
+                  Object[] destination, int destinationStart,
+                  Comparator<Object> comparator) {
+            this.a = a;
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.b = b;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+            this.destination = destination;
+            this.destinationStart = destinationStart;
+            this.comparator = comparator;
+        }
 
-        final var result = new Object[original.length - length];
+        @Override
+        protected void compute() {
+            final var aLength = aEnd - aStart;
+            final var bLength = bEnd - bStart;
 
-        for (int i = 0; i < start; ++i) {
-            result[i] = original[i];
+            if (aLength + bLength < PARALLEL_THRESHOLD || aLength == 0 || bLength == 0) {
+                mergeSequentially();
+                return;
+            }
+
+            if (aLength >= bLength) {
+                // everything in b up to and including the middle item of a goes before it
+                final var aMiddle = (aStart + aEnd) >>> 1;
+                final var bSplit = upperBound(b, bStart, bEnd, a[aMiddle], comparator);
+                final var destinationSplit = destinationStart + (aMiddle - aStart) + (bSplit - bStart);
+
+                invokeAll(
+                        new MergeTask(a, aStart, aMiddle, b, bStart, bSplit, destination, destinationStart, comparator),
+                        new MergeTask(a, aMiddle, aEnd, b, bSplit, bEnd, destination, destinationSplit, comparator));
+            } else {
+                // everything in a that is less than the middle item of b goes before it
+                final var bMiddle = (bStart + bEnd) >>> 1;
+                final var aSplit = lowerBound(a, aStart, aEnd, b[bMiddle]);
+                final var destinationSplit = destinationStart + (aSplit - aStart) + (bMiddle - bStart);
+
+                invokeAll(
+                        new MergeTask(a, aStart, aSplit, b, bStart, bMiddle, destination, destinationStart, comparator),
+                        new MergeTask(a, aSplit, aEnd, b, bMiddle, bEnd, destination, destinationSplit, comparator));
+            }
         }
 
-        for (int i = start + length; i < original.length; ++i) {
-            result[i - length] = original[i];
+        /**
+         * Index of the first item in array[start, end) that is not less than the given item.
+         */
+        private int lowerBound(Object[] array, int start, int end, Object item) {
+            while (start < end) {
+                final var middle = (start + end) >>> 1;
+
+                if (comparator.compare(array[middle], item) < 0) {
+                    start = middle + 1;
+                } else {
+                    end = middle;
+                }
+            }
+            return start;
         }
 
-        return result;
-    }
+        private void mergeSequentially() {
+            int indexA = aStart;
+            int indexB = bStart;
+            int destinationIndex = destinationStart;
 
-    private static Object[][] partition(Object[] array, int size) {
-        nullCheck(array);
-        if (size < 1) throw new IllegalArgumentException("Size must be greater than 0.");
+            while (indexA < aEnd && indexB < bEnd) {
+                if (comparator.compare(a[indexA], b[indexB]) < 0) {
+                    destination[destinationIndex++] = a[indexA++];
+                } else {
+                    destination[destinationIndex++] = b[indexB++];
+                }
+            }
 
-        if (size >= array.length) {
-            return new Object[][]{array};
+            while (indexA < aEnd) destination[destinationIndex++] = a[indexA++];
+            while (indexB < bEnd) destination[destinationIndex++] = b[indexB++];
         }
+    }
 
-        final var remainder = array.length % size;
-        final var wholeCount = array.length / size;
+    /**
+     * The new value of one of the updates given to {@link #withUpdates(long[], Update)}, position is its place in the
+     * sorted updates.
+     */
+    @FunctionalInterface
+    private interface Update {
+        Object apply(int position, Object old);
+    }
 
-        final var result = new Object[wholeCount + (remainder > 0 ? 1 : 0)][];
+    /**
+     * The two lists made by {@link #splitAt(int)}.
+     */
+    public static class Halves<T> {
+        public final PersistentList<T> left;
+        public final PersistentList<T> right;
 
-        for (int i = 0; i < wholeCount; ++i) {
-            final var index = i * size;
-            result[i] = Arrays.copyOfRange(array, index, index + size);
+        private Halves(PersistentList<T> left, PersistentList<T> right) {
+            this.left = left;
+            this.right = right;
         }
 
-        if (remainder > 0) {
-            final var index = (wholeCount) * size;
-            result[wholeCount] = Arrays.copyOfRange(array, index, index + remainder);
+        @Override
+        public String toString() {
+            return left + " " + right;
         }
-
-        return result;
     }
 
     /**
-     * Produces a balanced node tree from a list of arrays. The arrays become the items in the leafs.
-     *
-     * @param partitions The partitions array to draw from
-     * @param index      index in the partitions array
-     * @param count      the number of partitions
+     * One change in the script made by {@link #diff(PersistentList)}.
      */
-    private static Node fromPartitions(Object[][] partitions, int index, int count) {
-        if (count <= 0) {
-            return EMPTY_LEAF;
-        } else if (count == 1) {
-            return new Leaf(partitions[index]);
-        } else {
-            final var remainder = count % 2;
-            final var leftCount = (count / 2) + (remainder > 0 ? 1 : 0);
-            final var rightCount = count / 2;
+    public static class Edit<T> {
+        public enum Kind {
+            /**
+             * values are inserted at index.
+             */
+            INSERT,
+            /**
+             * length items starting at index are removed.
+             */
+            REMOVE,
+            /**
+             * length items starting at index are replaced by values.
+             */
+            REPLACE
+        }
 
-            return new Branch(
-                    fromPartitions(partitions, index, leftCount),
-                    fromPartitions(partitions, index + leftCount, rightCount));
+        public final Kind kind;
+        public final int index;
+        public final int length;
+        public final PersistentList<T> values;
+
+        private Edit(Kind kind, int index, int length, PersistentList<T> values) {
+            this.kind = kind;
+            this.index = index;
+            this.length = length;
+            this.values = values;
         }
-    }
 
-    private static Node fromPartitions(Object[][] partitions) {
-        return fromPartitions(partitions, 0, partitions.length);
+        @Override
+        public String toString() {
+            return kind + " " + index + " " + length + " " + values;
+        }
     }
 
-    private static Node fromArray(Object[] array) {
-        if (array.length <= LEAF_SIZE) {
-            return new Leaf(array);
-        } else {
-            return fromPartitions(
-                    partition(array, LEAF_SIZE));
+    private static class DiffPiece {
+        final Node node;
+        final int offset;
+        final boolean fromA;
+        boolean shared = false;
+
+        DiffPiece(Node node, int offset, boolean fromA) {
+            this.node = node;
+            this.offset = offset;
+            this.fromA = fromA;
         }
     }
 
-    private static Node fromIterable(Iterable<Object> iterable) {
-        return fromArray(StreamSupport.stream(iterable.spliterator(), false).toArray());
+    private static class boolRef {
+        public boolean value;
+
+        public boolRef(boolean value) {
+            this.value = value;
+        }
     }
 
     /**
-     * ~ (!!! only call if a's items are equal to b's items !!!) ~
+     * Known results of comparing two lists, keyed by the pair of what they're stored as (head, root, tail and direction),
+     * since those are compared by identity and never change. It's shared by all lists and split into stripes with their
+     * own lock and their own share of the size limit, each forgetting its least recently used pair when it's full. The
+     * parts are only weakly referenced, pairs whose parts died just can't be hit anymore and age out like the rest.
      */
-    private static void consolidateCaches(Branch a, Branch b) {
-        if (a.quickHashCache == null) {
-            if (b.quickHashCache != null) {
-                a.quickHashCache = b.quickHashCache;
+    private static class EqualityCache {
+        private static final int STRIPES = 16;
+        private final Stripe[] stripes = new Stripe[STRIPES];
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+
+        EqualityCache(int size) {
+            for (int i = 0; i < STRIPES; ++i) {
+                stripes[i] = new Stripe(Math.max(1, size / STRIPES));
             }
-        } else {
-            b.quickHashCache = a.quickHashCache;
         }
-    }
 
-    private static Object[] merged(Iterable<Object> a, Iterable<Object> b, Comparator<Object> comparator) {
-        final var enuA = new Enumerator<>(a.iterator());
-        final var enuB = new Enumerator<>(b.iterator());
-        final var result = new ArrayList<>();
+        Boolean get(PersistentList<?> a, PersistentList<?> b) {
+            final var key = new ListPair(a, b, false);
+            final var stripe = stripes[key.hash & (STRIPES - 1)];
 
-        enuA.moveNext();
-        enuB.moveNext();
+            final Boolean result;
+            synchronized (stripe) {
+                result = stripe.get(key);
+            }
 
-        while (!enuA.complete() && !enuB.complete()) {
-            if (comparator.compare(enuA.current(), enuB.current()) < 0) {
-                result.add(enuA.current());
-                enuA.moveNext();
-            } else {
-                result.add(enuB.current());
-                enuB.moveNext();
+            (result == null ? misses : hits).increment();
+            return result;
+        }
+
+        void put(PersistentList<?> a, PersistentList<?> b, boolean equal) {
+            final var key = new ListPair(a, b, true);
+            final var stripe = stripes[key.hash & (STRIPES - 1)];
+
+            synchronized (stripe) {
+                stripe.put(key, equal);
             }
         }
 
-        if (!enuA.complete()) {
-            do {
-                result.add(enuA.current());
-            } while (enuA.moveNext());
-        } else if (!enuB.complete()) {
-            do {
-                result.add(enuB.current());
-            } while (enuB.moveNext());
+        @SuppressWarnings("serial")
+        private static class Stripe extends LinkedHashMap<ListPair, Boolean> {
+            private final int capacity;
+
+            Stripe(int capacity) {
+                super(16, 0.75f, true);
+                this.capacity = capacity;
+            }
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ListPair, Boolean> eldest) {
+                return size() > capacity;
+            }
         }
 
-        return result.toArray();
-    }
+        /**
+         * An unordered pair of lists by their stored parts. The ones stored in the cache hold WeakReferences, the ones
+         * made for lookups hold the parts themselves so looking something up doesn't allocate references. Empty heads and
+         * tails are all the same to it, they're kept as {@link #EMPTY_ARRAY}.
+         */
+        private static class ListPair {
+            private final Object headA;
+            private final Object rootA;
+            private final Object tailA;
+            private final boolean reversedA;
+            private final Object headB;
+            private final Object rootB;
+            private final Object tailB;
+            private final boolean reversedB;
+            final int hash;
+
+            ListPair(PersistentList<?> a, PersistentList<?> b, boolean weak) {
+                headA = part(a.head, weak);
+                rootA = part(a.root, weak);
+                tailA = part(a.tail, weak);
+                reversedA = a.reversed;
+                headB = part(b.head, weak);
+                rootB = part(b.root, weak);
+                tailB = part(b.tail, weak);
+                reversedB = b.reversed;
+                hash = spread(hashOf(a) ^ hashOf(b));
+            }
 
-    private static boolean isSorted(Object[] array, Comparator<Object> comparator) {
-        for (int i = 1; i < array.length; ++i) {
-            if (comparator.compare(array[i - 1], array[i]) > 0) return false;
+            private static Object part(Object[] items, boolean weak) {
+                return items.length == 0 ? EMPTY_ARRAY : part((Object) items, weak);
+            }
+
+            private static Object part(Object part, boolean weak) {
+                return weak ? new WeakReference<>(part) : part;
+            }
+
+            private static Object get(Object part) {
+                return part instanceof WeakReference<?> reference ? reference.get() : part;
+            }
+
+            private static int hashOf(PersistentList<?> list) {
+                final var hash = System.identityHashCode(list.head.length == 0 ? EMPTY_ARRAY : list.head) * 961
+                        + System.identityHashCode(list.root) * 31
+                        + System.identityHashCode(list.tail.length == 0 ? EMPTY_ARRAY : list.tail);
+                return list.reversed ? ~hash : hash;
+            }
+
+            private static int spread(int hash) {
+                return hash ^ (hash >>> 16);
+            }
+
+            @Override
+            public int hashCode() {
+                return hash;
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                if (this == obj) return true;
+                if (!(obj instanceof ListPair other) || hash != other.hash) return false;
+
+                final var a0 = get(headA);
+                final var a1 = get(rootA);
+                final var a2 = get(tailA);
+                final var b0 = get(headB);
+                final var b1 = get(rootB);
+                final var b2 = get(tailB);
+                if (a0 == null || a1 == null || a2 == null || b0 == null || b1 == null || b2 == null) return false;
+
+                final var otherA0 = get(other.headA);
+                final var otherA1 = get(other.rootA);
+                final var otherA2 = get(other.tailA);
+                final var otherB0 = get(other.headB);
+                final var otherB1 = get(other.rootB);
+                final var otherB2 = get(other.tailB);
+
+                final var sameOrder = reversedA == other.reversedA && reversedB == other.reversedB
+                        && a0 == otherA0 && a1 == otherA1 && a2 == otherA2
+                        && b0 == otherB0 && b1 == otherB1 && b2 == otherB2;
+                final var swapped = reversedA == other.reversedB && reversedB == other.reversedA
+                        && a0 == otherB0 && a1 == otherB1 && a2 == otherB2
+                        && b0 == otherA0 && b1 == otherA1 && b2 == otherA2;
+                return sameOrder || swapped;
+            }
         }
-        return true;
     }
 
-    private static <T> boolean isSorted(Iterable<T> items, Comparator<T> comparator) {
-        final var iter = items.iterator();
+    /**
+     * Weak hash table of nodes by content. Leaves are equal when their items are, branches when they have the same
+     * children, which is enough for whole trees because the children of an interned branch are interned first. Entries
+     * are dropped once their node is only reachable from here.
+     * <p>
+     * It's split into {@link #STRIPES} tables by hash, each with its own lock, so the threads of a parallel sort or map
+     * that make nodes at the same time mostly don't wait for each other.
+     * <p>
+     * Only leaves whose items are all values (see {@link #VALUE_CLASSES}) are interned. Interning any other leaf would
+     * hand out the items of whatever list made an equal leaf first, which are equal but not the same objects, and that
+     * matters for mutable items.
+     */
+    private static class NodeInterner {
+        private static final int STRIPES = 64;
+        /**
+         * Immutable classes whose equal instances are interchangeable. Enums and null are values too.
+         */
+        private static final Set<Class<?>> VALUE_CLASSES = Set.of(
+                String.class, Integer.class, Long.class, Short.class, Byte.class, Character.class, Boolean.class,
+                Double.class, Float.class, java.math.BigInteger.class, java.math.BigDecimal.class);
+
+        private final Stripe[] stripes = new Stripe[STRIPES];
+
+        NodeInterner() {
+            for (int i = 0; i < STRIPES; ++i) {
+                stripes[i] = new Stripe();
+            }
+        }
 
-        if (!iter.hasNext()) return true;
+        int size() {
+            var result = 0;
+            for (final var stripe : stripes) {
+                result += stripe.size();
+            }
+            return result;
+        }
 
-        var prev = iter.next();
+        <N extends Node> N intern(N node) {
+            if (node instanceof Leaf l && !holdsOnlyValues(l)) return node;
 
-        while (iter.hasNext()) {
-            if (comparator.compare(prev, prev = iter.next()) > 0) return false;
+            final var hash = contentHash(node);
+            // the table index comes from the low bits, the stripe from the high ones
+            return stripes[hash >>> (Integer.SIZE - Integer.numberOfTrailingZeros(STRIPES))].intern(node, hash);
         }
 
-        return true;
-    }
+        private static boolean holdsOnlyValues(Leaf l) {
+            for (final var item : l.items) {
+                if (item != null && !(item instanceof Enum<?>) && !VALUE_CLASSES.contains(item.getClass())) return false;
+            }
+            return true;
+        }
 
-    private static <T> void reverse(T[] array) {
-        for (int i = 0; i < array.length / 2; ++i) {
-            final var temp = array[i];
-            array[i] = array[array.length - 1 - i];
-            array[array.length - 1 - i] = temp;
+        private static int contentHash(Node n) {
+            if (n instanceof Branch b) {
+                final var hash = System.identityHashCode(b.left) * 31 + System.identityHashCode(b.right);
+                return hash ^ (hash >>> 16);
+            } else {
+                final var hash = n.quickHash();
+                return hash ^ (hash >>> 16);
+            }
         }
-    }
 
-    private static Object[] reversed(Object[] array) {
-        final var result = new Object[array.length];
-        for (int i = 0; i < array.length; ++i) {
-            result[result.length - 1 - i] = array[i];
+        private static boolean sameContent(Node a, Node b) {
+            if (a instanceof Branch ab) {
+                return b instanceof Branch bb && ab.left == bb.left && ab.right == bb.right;
+            } else {
+                return b instanceof Leaf lb && Arrays.equals(((Leaf) a).items, lb.items);
+            }
         }
-        return result;
-    }
 
-    // ======================== Inner Classes ===============================
-    private static class ItemsIterable implements Iterable<Object> {
-        private final Node node;
+        private static class Stripe {
+            private final ReferenceQueue<Node> collected = new ReferenceQueue<>();
+            private Entry[] table = new Entry[64];
+            private int size = 0;
+
+            synchronized int size() {
+                expunge();
+                return size;
+            }
+
+            synchronized <N extends Node> N intern(N node, int hash) {
+                expunge();
+
+                final var index = hash & (table.length - 1);
+                for (var e = table[index]; e != null; e = e.next) {
+                    if (e.hash != hash) continue;
+
+                    final var known = e.get();
+                    if (known != null && sameContent(known, node)) return (N) known;
+                }
+
+                table[index] = new Entry(node, hash, table[index], collected);
+                if (++size > table.length / 4 * 3) resize();
+                return node;
+            }
+
+            private void resize() {
+                final var old = table;
+                table = new Entry[old.length * 2];
+
+                for (var e : old) {
+                    while (e != null) {
+                        final var next = e.next;
+                        final var index = e.hash & (table.length - 1);
+                        e.next = table[index];
+                        table[index] = e;
+                        e = next;
+                    }
+                }
+            }
 
-        public ItemsIterable(Node node) {
-            this.node = node;
+            private void expunge() {
+                Reference<? extends Node> dead;
+                while ((dead = collected.poll()) != null) {
+                    final var entry = (Entry) dead;
+                    final var index = entry.hash & (table.length - 1);
+
+                    Entry previous = null;
+                    for (var e = table[index]; e != null; previous = e, e = e.next) {
+                        if (e == entry) {
+                            if (previous == null) table[index] = e.next;
+                            else previous.next = e.next;
+                            --size;
+                            break;
+                        }
+                    }
+                }
+            }
         }
 
-        public Iterator<Object> iterator() {
-            return new ItemIterator(node);
+        private static class Entry extends WeakReference<Node> {
+            final int hash;
+            Entry next;
+
+            Entry(Node node, int hash, Entry next, ReferenceQueue<Node> queue) {
+                super(node, queue);
+                this.hash = hash;
+                this.next = next;
+            }
         }
     }
 
-    private static class boolRef {
-        public boolean value;
-
-        public boolRef(boolean value) {
-            this.value = value;
+    /**
+     * What {@link #sortednessOf(Node, Comparator)} caches in a node. first and last are the node's first and last item,
+     * which are its smallest and biggest when it's sorted.
+     */
+    private static class Sortedness {
+        final Comparator<Object> comparator;
+        final boolean sorted;
+        final Object first;
+        final Object last;
+
+        Sortedness(Comparator<Object> comparator, boolean sorted, Object first, Object last) {
+            this.comparator = comparator;
+            this.sorted = sorted;
+            this.first = first;
+            this.last = last;
         }
     }
 
@@ -1092,6 +3872,10 @@ public class PersistentList<T> implements Iterable<T> {
 
         int itemCount();
 
+        /**
+         * Ordered polynomial hash of the items, see {@link #orderedHash(Object[])}. For a branch it's
+         * left.quickHash() * 31^right.itemCount() + right.quickHash(), so it only needs the hashes of the children.
+         */
         int quickHash();
 
         int weight();
@@ -1101,20 +3885,69 @@ public class PersistentList<T> implements Iterable<T> {
         int absoluteBalanceFactor();
     }
 
-    private static class Branch implements Node {
-        final Node left;
-        final Node right;
+    /**
+     * A node without children that keeps its items somewhere other than an Object[], like the ranges of a file in
+     * {@link MappedPersistentList}. {@link #joined(Node, Node)}, {@link #prefixOf(Node, int)} and
+     * {@link #suffixOf(Node, int)} treat it like a leaf, they only need to be able to cut it. The rest of PersistentList
+     * doesn't know about segments, so they're never part of a PersistentList's own tree.
+     */
+    interface Segment extends Node {
+        /**
+         * @return the items in [start, end), with 0 < start or end < itemCount() and start < end.
+         */
+        Node sliced(int start, int end);
+
+        default int leafCount() {
+            return 1;
+        }
+
+        default int weight() {
+            return 1;
+        }
+
+        default int balanceFactor() {
+            return 0;
+        }
+
+        default int absoluteBalanceFactor() {
+            return 0;
+        }
+    }
+
+    static class Branch implements Node {
+        /**
+         * Only ever reassigned by the {@link Transient} that owns this branch, see {@link #owner}.
+         */
+        Node left;
+        Node right;
         final int itemCount;
         final int leafCount;
         final int weight;
+        /**
+         * The edit token of the {@link Transient} that created this branch, null for branches made by PersistentList itself.
+         */
+        final Object owner;
         volatile Integer quickHashCache = null;
+        volatile Integer reversedHashCache = null;
+        volatile long[] filterCache = null;
+        volatile Sortedness sortedness = null;
+        /**
+         * {@link #sortedness} of the items read backwards, for reversed lists.
+         */
+        volatile Sortedness reversedSortedness = null;
+        volatile WideIndex wideIndex = null;
 
         public Branch(Node left, Node right) {
+            this(left, right, null);
+        }
+
+        Branch(Node left, Node right, Object owner) {
             nullCheck(left);
             nullCheck(right);
 
             this.left = left;
             this.right = right;
+            this.owner = owner;
 
 
             this.itemCount = left.itemCount() + right.itemCount();
@@ -1135,7 +3968,7 @@ public class PersistentList<T> implements Iterable<T> {
 
             synchronized (this) {
                 if (quickHashCache == null) {
-                    quickHashCache = nonOrderedHash(left.quickHash(), right.quickHash());
+                    quickHashCache = left.quickHash() * powerOf31(right.itemCount()) + right.quickHash();
                 }
             }
 
@@ -1153,14 +3986,43 @@ public class PersistentList<T> implements Iterable<T> {
         public int absoluteBalanceFactor() {
             return Math.abs(balanceFactor());
         }
+
+        /**
+         * Forgets everything that was worked out from the items below this branch, for a {@link Transient} that has just
+         * changed one of them in place. Only ever call it on branches the transient owns.
+         */
+        void clearCaches() {
+            quickHashCache = null;
+            reversedHashCache = null;
+            filterCache = null;
+            sortedness = null;
+            reversedSortedness = null;
+            wideIndex = null;
+        }
     }
 
-    private static class Leaf implements Node {
+    static class Leaf implements Node {
         final Object[] items;
+        /**
+         * The edit token of the {@link Transient} that created this leaf, null for leaves made by PersistentList itself.
+         */
+        final Object owner;
         volatile Integer quickHashCache = null;
+        volatile Integer reversedHashCache = null;
+        volatile long[] filterCache = null;
+        volatile Sortedness sortedness = null;
+        /**
+         * {@link #sortedness} of the items read backwards, for reversed lists.
+         */
+        volatile Sortedness reversedSortedness = null;
 
         Leaf(Object[] items) {
+            this(items, null);
+        }
+
+        Leaf(Object[] items, Object owner) {
             this.items = items == null ? new Object[0] : items;
+            this.owner = owner;
         }
 
         public int quickHash() {
@@ -1168,7 +4030,7 @@ public class PersistentList<T> implements Iterable<T> {
 
             synchronized (this) {
                 if (quickHashCache == null) {
-                    quickHashCache = nonOrderedHash(items);
+                    quickHashCache = orderedHash(items);
                 }
             }
 
@@ -1194,17 +4056,606 @@ public class PersistentList<T> implements Iterable<T> {
         public int absoluteBalanceFactor() {
             return 0;
         }
+
+        /**
+         * Same as {@link Branch#clearCaches()}, for leaves a {@link Transient} owns.
+         */
+        void clearCaches() {
+            quickHashCache = null;
+            reversedHashCache = null;
+            filterCache = null;
+            sortedness = null;
+            reversedSortedness = null;
+        }
+    }
+
+    /**
+     * Mutable, single threaded builder for PersistentList. Nodes that it creates are tagged with its edit token, which lets
+     * it change them in place instead of copying them. Nodes that it didn't create (the ones shared with the list it was
+     * made from) are copied the first time they're changed, the same way PersistentList does it.
+     * <p>
+     * Appended items go into full-size leaves that are kept in a flat list and are only built into a tree by
+     * {@link #persistent()}, so appending is about as cheap as appending to an ArrayList.
+     * <p>
+     * Once {@link #persistent()} is called the edit token is dropped, which freezes every node the transient made, and the
+     * transient can't be used anymore.
+     */
+    public static class Transient<T> {
+        private Object owner = new Object();
+        private Node root;
+        private final ArrayList<Leaf> appended = new ArrayList<>();
+        private Object[] tail = new Object[LEAF_SIZE];
+        private int tailCount = 0;
+
+        private Transient(Node root, Object[] tail) {
+            this.root = root;
+            System.arraycopy(tail, 0, this.tail, 0, tail.length);
+            this.tailCount = tail.length;
+        }
+
+        public Transient() {
+            this(EMPTY_LEAF, EMPTY_ARRAY);
+        }
+
+        public int size() {
+            return root.itemCount() + appended.size() * LEAF_SIZE + tailCount;
+        }
+
+        public T get(int index) {
+            ensureEditable();
+            indexCheck(index, size());
+
+            if (index < root.itemCount()) {
+                return (T) valueFrom(root, index);
+            }
+
+            index -= root.itemCount();
+            final var leafIndex = index / LEAF_SIZE;
+
+            if (leafIndex < appended.size()) {
+                return (T) appended.get(leafIndex).items[index % LEAF_SIZE];
+            } else {
+                return (T) tail[index - appended.size() * LEAF_SIZE];
+            }
+        }
+
+        public Transient<T> set(int index, T value) {
+            ensureEditable();
+            indexCheck(index, size());
+
+            if (index < root.itemCount()) {
+                root = withReplacement(root, index, value);
+                return this;
+            }
+
+            index -= root.itemCount();
+            final var leafIndex = index / LEAF_SIZE;
+
+            if (leafIndex < appended.size()) {
+                // appended leaves are always owned by this transient
+                appended.get(leafIndex).items[index % LEAF_SIZE] = value;
+            } else {
+                tail[index - appended.size() * LEAF_SIZE] = value;
+            }
+            return this;
+        }
+
+        public Transient<T> add(T value) {
+            ensureEditable();
+
+            if (tailCount == LEAF_SIZE) {
+                appended.add(new Leaf(tail, owner));
+                tail = new Object[LEAF_SIZE];
+                tailCount = 0;
+            }
+
+            tail[tailCount++] = value;
+            return this;
+        }
+
+        public Transient<T> addAll(T[] values) {
+            for (final var value : values) {
+                add(value);
+            }
+            return this;
+        }
+
+        public Transient<T> addAll(Iterable<T> values) {
+            for (final var value : values) {
+                add(value);
+            }
+            return this;
+        }
+
+        /**
+         * Freezes the transient into a PersistentList. The transient can't be used after this.
+         */
+        public PersistentList<T> persistent() {
+            ensureEditable();
+            owner = null;
+
+            // the partly filled tail stays a tail
+            final var leaves = appended.toArray(new Leaf[0]);
+
+            final var resultRoot = root.itemCount() == 0
+                    ? fromLeaves(leaves, 0, leaves.length)
+                    : leaves.length == 0
+                    ? root
+                    : withInsertion(root, root.itemCount(), fromLeaves(leaves, 0, leaves.length));
+            final var resultTail = tailCount == 0 ? EMPTY_ARRAY : Arrays.copyOf(tail, tailCount);
+
+            root = null;
+            tail = null;
+            appended.clear();
+
+            return new PersistentList<>(EMPTY_ARRAY, resultRoot, resultTail);
+        }
+
+        private Node withReplacement(Node n, int index, Object value) {
+            if (n instanceof Branch b) {
+                final var editable = b.owner == owner ? b : new Branch(b.left, b.right, owner);
+
+                if (index < editable.left.itemCount()) {
+                    editable.left = withReplacement(editable.left, index, value);
+                } else {
+                    editable.right = withReplacement(editable.right, index - editable.left.itemCount(), value);
+                }
+
+                editable.clearCaches();
+                return editable;
+            } else if (n instanceof Leaf l) {
+                final var editable = l.owner == owner ? l : new Leaf(Arrays.copyOf(l.items, l.items.length), owner);
+
+                editable.items[index] = value;
+
+                editable.clearCaches();
+                return editable;
+            } else throw new NullPointerException();
+        }
+
+        private void ensureEditable() {
+            if (owner == null) throw new IllegalStateException("Transient used after call to persistent().");
+        }
+    }
+
+    /**
+     * A {@link ListIterator} that can be put at any index in O(log n) and moves in both directions one item or one leaf at
+     * a time. It keeps the path from the root to its current leaf in an array, so moving to a neighbouring leaf only climbs
+     * as far as the closest common branch, and it doesn't allocate anything while moving. It isn't thread safe.
+     * <p>
+     * Being a view of a persistent list it can't modify it, so {@link #set}, {@link #add} and {@link #remove} throw
+     * UnsupportedOperationException.
+     * <p>
+     * On a reversed list the cursor walks the stored tree the other way, everything below the public methods works with
+     * stored indexes.
+     */
+    public class Cursor implements ListIterator<T> {
+        private final Node tree = tree();
+        private final boolean backwards = reversed;
+        /**
+         * The branches from the root to the current leaf and whether the path went to the right side of each.
+         */
+        private Branch[] path = new Branch[32];
+        private boolean[] wentRight = new boolean[32];
+        private int depth = 0;
+        private Leaf leaf;
+        /**
+         * Index of the current leaf's first item.
+         */
+        private int leafStart;
+        /**
+         * Index of the item that next() returns.
+         */
+        private int index;
+
+        private Cursor(int index) {
+            seek(index);
+        }
+
+        /**
+         * Moves the cursor so that next() returns the item at index.
+         */
+        public Cursor seek(int index) {
+            indexCheck(index, tree.itemCount() + 1);
+
+            moveTo(backwards ? tree.itemCount() - index : index);
+            return this;
+        }
+
+        public boolean hasNext() {
+            return backwards ? storedHasPrevious() : storedHasNext();
+        }
+
+        public T next() {
+            return backwards ? storedPrevious() : storedNext();
+        }
+
+        public boolean hasPrevious() {
+            return backwards ? storedHasNext() : storedHasPrevious();
+        }
+
+        public T previous() {
+            return backwards ? storedNext() : storedPrevious();
+        }
+
+        public int nextIndex() {
+            return backwards ? tree.itemCount() - index : index;
+        }
+
+        public int previousIndex() {
+            return nextIndex() - 1;
+        }
+
+        /**
+         * @return the items from the cursor to the end of its leaf as a read-only view, after which the cursor is moved past
+         * them. Returns an empty list at the end of the list.
+         */
+        public List<T> nextChunk() {
+            return backwards ? reversedView(storedPreviousChunk()) : storedNextChunk();
+        }
+
+        /**
+         * @return the items from the start of the cursor's leaf up to the cursor as a read-only view, after which the cursor
+         * is moved before them. Returns an empty list at the start of the list.
+         */
+        public List<T> previousChunk() {
+            return backwards ? reversedView(storedNextChunk()) : storedPreviousChunk();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void set(T t) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void add(T t) {
+            throw new UnsupportedOperationException();
+        }
+
+        private void moveTo(int index) {
+            depth = 0;
+            leafStart = 0;
+            Node current = tree;
+            // when seeking to the end stop at the last leaf
+            var remaining = Math.min(index, tree.itemCount() - 1);
+
+            while (current instanceof Branch b) {
+                final var goRight = remaining >= b.left.itemCount();
+                pushPath(b, goRight);
+
+                if (goRight) {
+                    remaining -= b.left.itemCount();
+                    leafStart += b.left.itemCount();
+                    current = b.right;
+                } else {
+                    current = b.left;
+                }
+            }
+
+            leaf = (Leaf) current;
+            this.index = index;
+        }
+
+        private boolean storedHasNext() {
+            return index < tree.itemCount();
+        }
+
+        private T storedNext() {
+            if (!storedHasNext()) throw new NoSuchElementException();
+
+            while (index >= leafStart + leaf.items.length) moveToNextLeaf();
+
+            return (T) leaf.items[(index++) - leafStart];
+        }
+
+        private boolean storedHasPrevious() {
+            return index > 0;
+        }
+
+        private T storedPrevious() {
+            if (!storedHasPrevious()) throw new NoSuchElementException();
+
+            while (index - 1 < leafStart) moveToPreviousLeaf();
+
+            return (T) leaf.items[(--index) - leafStart];
+        }
+
+        private List<T> storedNextChunk() {
+            if (!storedHasNext()) return Collections.emptyList();
+
+            while (index >= leafStart + leaf.items.length) moveToNextLeaf();
+
+            final var start = index - leafStart;
+            index = leafStart + leaf.items.length;
+
+            return Collections.unmodifiableList(Arrays.asList((T[]) leaf.items).subList(start, leaf.items.length));
+        }
+
+        private List<T> storedPreviousChunk() {
+            if (!storedHasPrevious()) return Collections.emptyList();
+
+            while (index - 1 < leafStart) moveToPreviousLeaf();
+
+            final var end = index - leafStart;
+            index = leafStart;
+
+            return Collections.unmodifiableList(Arrays.asList((T[]) leaf.items).subList(0, end));
+        }
+
+        private List<T> reversedView(List<T> items) {
+            return new AbstractList<>() {
+                public T get(int index) {
+                    return items.get(items.size() - 1 - index);
+                }
+
+                public int size() {
+                    return items.size();
+                }
+            };
+        }
+
+        private void moveToNextLeaf() {
+            final var oldLeafLength = leaf.items.length;
+
+            // climb to the closest branch that was entered on its left side
+            while (depth > 0 && wentRight[depth - 1]) --depth;
+            if (depth == 0) throw new IllegalStateException();
+
+            final var parent = path[depth - 1];
+            wentRight[depth - 1] = true;
+
+            Node current = parent.right;
+            while (current instanceof Branch b) {
+                pushPath(b, false);
+                current = b.left;
+            }
+
+            leaf = (Leaf) current;
+            leafStart += oldLeafLength;
+        }
+
+        private void moveToPreviousLeaf() {
+            // climb to the closest branch that was entered on its right side
+            while (depth > 0 && !wentRight[depth - 1]) --depth;
+            if (depth == 0) throw new IllegalStateException();
+
+            final var parent = path[depth - 1];
+            wentRight[depth - 1] = false;
+
+            Node current = parent.left;
+            while (current instanceof Branch b) {
+                pushPath(b, true);
+                current = b.right;
+            }
+
+            leaf = (Leaf) current;
+            leafStart -= leaf.items.length;
+        }
+
+        private void pushPath(Branch b, boolean goRight) {
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, path.length * 2);
+                wentRight = Arrays.copyOf(wentRight, wentRight.length * 2);
+            }
+            path[depth] = b;
+            wentRight[depth] = goRight;
+            ++depth;
+        }
+    }
+
+    /**
+     * Random access that remembers the leaf of its last get and the path from the root to it. A get in the same leaf is
+     * O(1) and one in a neighbouring leaf only climbs to the closest branch that holds both, only far jumps go through
+     * the whole tree, skipping levels through the same wide indexes as {@link #get(int)}. It doesn't allocate anything
+     * after the path array has grown to the depth of the tree and it isn't thread safe.
+     * <p>
+     * For gets that jump all over the list {@link #get(int)} is faster, every lookup of a reader starts where the last one
+     * ended so the CPU can't overlap their cache misses like it does for independent gets.
+     * <p>
+     * It reads the list's head, root and tail as they were when it was made, so unlike {@link Cursor} it doesn't need
+     * {@link #tree()} to fold them together first.
+     */
+    public class Reader {
+        private final Object[] readHead = head;
+        private final Node readRoot = root;
+        private final Object[] readTail = tail;
+        private final boolean backwards = reversed;
+        private final int size = PersistentList.this.size();
+        /**
+         * Branches from the root to the current leaf, the root index of the first item under each and how far under the
+         * root they are. Levels that were skipped through a wide index aren't in it.
+         */
+        private Branch[] path = new Branch[32];
+        private int[] starts = new int[32];
+        private int[] levels = new int[32];
+        private int depth = 0;
+        private Leaf leaf = EMPTY_LEAF;
+        /**
+         * Root indexes of the current leaf's items, [leafStart, leafEnd).
+         */
+        private int leafStart = 0;
+        private int leafEnd = 0;
+
+        private Reader() {
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public T get(int index) {
+            indexCheck(index, size);
+            if (backwards) index = size - 1 - index;
+
+            if (index < readHead.length) return (T) readHead[index];
+            index -= readHead.length;
+            if (index >= readRoot.itemCount()) return (T) readTail[index - readRoot.itemCount()];
+
+            if (index < leafStart || index >= leafEnd) {
+                moveTo(index);
+            } else if (Metrics.ENABLED) {
+                Metrics.lookup(0);
+            }
+
+            return (T) leaf.items[index - leafStart];
+        }
+
+        /**
+         * Makes the leaf that holds the item at root index the current one.
+         */
+        private void moveTo(int index) {
+            // climb to the closest branch that holds index, it's entered again below
+            while (depth > 0 && (index < starts[depth - 1] || index >= starts[depth - 1] + path[depth - 1].itemCount)) {
+                --depth;
+            }
+
+            Node current = readRoot;
+            var start = 0;
+            var level = 0;
+            if (depth > 0) {
+                --depth;
+                current = path[depth];
+                start = starts[depth];
+                level = levels[depth];
+            }
+
+            var steps = 0;
+            while (current instanceof Branch b) {
+                ++steps;
+                pushPath(b, start, level);
+
+                // a reader is made for lots of lookups, so it builds the indexes right away
+                final var wide = level % WIDE_INDEX_DEPTH == 0 && b.itemCount >= WIDE_INDEX_MIN_ITEMS
+                        ? wideIndexOf(b, true)
+                        : null;
+
+                if (wide != null) {
+                    final var ends = wide.ends;
+                    final var offset = index - start;
+
+                    var slot = (int) ((long) offset * ends.length / b.itemCount);
+                    while (ends[slot] <= offset) ++slot;
+                    while (slot > 0 && ends[slot - 1] > offset) --slot;
+
+                    if (slot > 0) start += ends[slot - 1];
+                    current = wide.nodes[slot];
+                    level += WIDE_INDEX_DEPTH;
+                } else {
+                    final var leftCount = b.left.itemCount();
+                    if (index - start < leftCount) {
+                        current = b.left;
+                    } else {
+                        start += leftCount;
+                        current = b.right;
+                    }
+                    ++level;
+                }
+            }
+
+            if (Metrics.ENABLED) Metrics.lookup(steps);
+            leaf = (Leaf) current;
+            leafStart = start;
+            leafEnd = start + leaf.items.length;
+        }
+
+        private void pushPath(Branch b, int start, int level) {
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, path.length * 2);
+                starts = Arrays.copyOf(starts, starts.length * 2);
+                levels = Arrays.copyOf(levels, levels.length * 2);
+            }
+            path[depth] = b;
+            starts[depth] = start;
+            levels[depth] = level;
+            ++depth;
+        }
     }
 
     public class SelfIterator implements Iterator<T> {
+        private final Object[] iteratedHead = head;
+        private int headIndex = 0;
         private final ItemIterator itemIterator = new ItemIterator(root);
+        private final Object[] iteratedTail = tail;
+        private int tailIndex = 0;
 
         public boolean hasNext() {
-            return itemIterator.hasNext();
+            return headIndex < iteratedHead.length || itemIterator.hasNext() || tailIndex < iteratedTail.length;
         }
 
         public T next() {
-            return (T) itemIterator.next();
+            if (headIndex < iteratedHead.length) {
+                return (T) iteratedHead[headIndex++];
+            } else if (itemIterator.hasNext()) {
+                return (T) itemIterator.next();
+            } else if (tailIndex < iteratedTail.length) {
+                return (T) iteratedTail[tailIndex++];
+            } else {
+                return null;
+            }
+        }
+    }
+
+    private static class NodeSpliterator<T> implements Spliterator<T> {
+        private Node node;
+        /**
+         * Whether to go through the node's items from the last one to the first, for reversed lists.
+         */
+        private final boolean backwards;
+        /**
+         * Created on the first call to tryAdvance, after which the spliterator stops splitting.
+         */
+        private LeafIterator leafIterator = null;
+        private Object[] items = EMPTY_ARRAY;
+        private int itemIndex = 0;
+        private int consumed = 0;
+
+        NodeSpliterator(Node node, boolean backwards) {
+            this.node = node;
+            this.backwards = backwards;
+        }
+
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (leafIterator == null) leafIterator = new LeafIterator(node, backwards);
+
+            while (itemIndex >= items.length) {
+                if (!leafIterator.hasNext()) return false;
+
+                items = leafIterator.next().items;
+                itemIndex = 0;
+            }
+
+            ++consumed;
+            action.accept((T) (backwards ? items[items.length - 1 - itemIndex++] : items[itemIndex++]));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            while (tryAdvance(action)) {
+                // the rest of the current leaf, then every leaf after it
+            }
+        }
+
+        public Spliterator<T> trySplit() {
+            if (leafIterator != null) return null;
+
+            if (node instanceof Branch b) {
+                final var prefix = new NodeSpliterator<T>(backwards ? b.right : b.left, backwards);
+                node = backwards ? b.left : b.right;
+                return prefix;
+            } else {
+                return null;
+            }
+        }
+
+        public long estimateSize() {
+            return node.itemCount() - consumed;
+        }
+
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | IMMUTABLE;
         }
     }
 
@@ -1264,17 +4715,32 @@ public class PersistentList<T> implements Iterable<T> {
     }
 
     private static class LeafIterator implements Iterator<Leaf> {
-        Stack<Node> location;
+        /**
+         * The nodes that are left to visit, next one on top. Only holds the right sides of the branches that were entered
+         * from the left, so it never gets deeper than the tree.
+         */
+        Node[] pending = new Node[32];
+        int pendingCount;
         int progress;
         final Node node;
+        /**
+         * Goes through the leaves from right to left.
+         */
+        final boolean backwards;
 
         public void reset() {
-            location = null;
+            pendingCount = 0;
             progress = 0;
+            push(node);
         }
 
         public LeafIterator(Node node) {
+            this(node, false);
+        }
+
+        public LeafIterator(Node node, boolean backwards) {
             this.node = node;
+            this.backwards = backwards;
             reset();
         }
 
@@ -1286,50 +4752,25 @@ public class PersistentList<T> implements Iterable<T> {
             if (!hasNext()) return null;
 
             ++progress;
-            if (location == null) {
-                initializeLocation();
-            } else {
-                advanceToNextLeaf();
+
+            Node current = pending[--pendingCount];
+            while (current instanceof Branch b) {
+                push(backwards ? b.left : b.right);
+                current = backwards ? b.right : b.left;
             }
-            return currentLeaf();
-        }
 
-        private Leaf currentLeaf() {
-            if (location.peek() instanceof Leaf l) {
+            if (current instanceof Leaf l) {
                 return l;
             } else {
                 throw new IllegalStateException();
             }
         }
 
-        private void advanceToNextLeaf() {
-            Node child = location.pop();
-            Node parent = location.peek();
-
-            while (child == ((Branch) parent).right) {
-                child = parent;
-                location.pop();
-                parent = location.peek();
-            }
-
-            location.push(((Branch) parent).right);
-
-            moveDownToLeaf();
-        }
-
-
-        private void moveDownToLeaf() {
-            Node current = location.peek();
-
-            while (current instanceof Branch b) {
-                location.push(current = b.left);
+        private void push(Node n) {
+            if (pendingCount == pending.length) {
+                pending = Arrays.copyOf(pending, pending.length * 2);
             }
-        }
-
-        private void initializeLocation() {
-            location = new Stack<>();
-            location.push(node);
-            moveDownToLeaf();
+            pending[pendingCount++] = n;
         }
     }
 }
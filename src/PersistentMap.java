@@ -57,14 +57,20 @@ public class PersistentMap<K, V> implements Iterable<PersistentMap<K, V>.Entry>
         final var startIndex = getKeyIndex(table.size(), key);
         int index = startIndex;
         _Entry current = table.get(index);
+        int probes = 1;
 
         while (!Objects.equals(key, current.key)) {
             if (++index >= table.size()) index = 0;
-            if (index == startIndex) return null;
+            if (index == startIndex) {
+                if (Metrics.ENABLED) Metrics.mapLookup(probes);
+                return null;
+            }
 
             current = table.get(index);
+            ++probes;
         }
 
+        if (Metrics.ENABLED) Metrics.mapLookup(probes);
         return current;
     }
 
@@ -84,12 +90,14 @@ public class PersistentMap<K, V> implements Iterable<PersistentMap<K, V>.Entry>
     }
 
     private PersistentList<_Entry> realloc() {
+        final var event = Metrics.begin(Metrics.ReallocEvent::new);
         var newTable = makeInitialTable(table.size() * 2);
 
         for (final var entry : table) {
             newTable = insertEntry(newTable, entry);
         }
 
+        Metrics.end(event, newTable.size());
         return newTable;
     }
 
@@ -0,0 +1,202 @@
+import java.util.Iterator;
+
+/**
+ * What {@link IntPersistentList}, {@link LongPersistentList} and {@link DoublePersistentList} have in common, everything
+ * that doesn't touch an item on its own. The subclasses only add the methods that take or return their primitive type.
+ * <p>
+ * Like PersistentList the last items are kept in a detached tail leaf, so appending only copies that leaf and pushes it
+ * into the tree once it's full.
+ *
+ * @param <E> the boxed item type
+ * @param <L> the subclass, which every modification returns
+ */
+abstract class PrimitivePersistentList<E, L extends PrimitivePersistentList<E, L>> implements Iterable<E> {
+    final PersistentList.Node root;
+    /**
+     * Items appended after the root, less than {@link PrimitiveTree#LEAF_SIZE} of them.
+     */
+    final PrimitiveTree.Leaf tail;
+    private volatile Integer hashCache = null;
+
+    PrimitivePersistentList(PersistentList.Node root, PrimitiveTree.Leaf tail) {
+        PersistentList.nullCheck(root);
+        PersistentList.nullCheck(tail);
+        this.root = root;
+        this.tail = tail;
+    }
+
+    /**
+     * @return a list of the subclass' type with root and tail.
+     */
+    abstract L newList(PersistentList.Node root, PrimitiveTree.Leaf tail);
+
+    abstract PrimitiveTree.Leaf emptyLeaf();
+
+    public abstract Iterator<E> iterator();
+
+    public int size() {
+        return root.itemCount() + tail.itemCount();
+    }
+
+    public L remove(int index, int length) {
+        if (length <= 0) return (L) this;
+
+        PersistentList.indexCheck(index, size());
+
+        final var end = index + length;
+        if (end > size()) throw new IndexOutOfBoundsException(end);
+
+        final var rootCount = root.itemCount();
+        final var newRoot = index < rootCount
+                ? PrimitiveTree.withoutRange(root, index, Math.min(end, rootCount))
+                : root;
+        final var newTail = end > rootCount
+                ? tail.slice(0, Math.max(index - rootCount, 0)).concatenated(tail.slice(end - rootCount, tail.itemCount()))
+                : tail;
+
+        return newList(newRoot, newTail);
+    }
+
+    public L remove(int index) {
+        return remove(index, 1);
+    }
+
+    public L subList(int start, int length) {
+        if (length <= 0) return newList(emptyLeaf(), emptyLeaf());
+        if (start == 0 && length == size()) return (L) this;
+
+        PersistentList.indexCheck(start, size());
+
+        final var end = start + length;
+        if (end > size()) throw new IndexOutOfBoundsException(end);
+
+        final var rootCount = root.itemCount();
+        final var newRoot = start < rootCount
+                ? PrimitiveTree.subListFrom(root, start, Math.min(end, rootCount))
+                : emptyLeaf();
+        final var newTail = end > rootCount
+                ? tail.slice(Math.max(start - rootCount, 0), end - rootCount)
+                : emptyLeaf();
+
+        return newList(newRoot, newTail);
+    }
+
+    /**
+     * Same value as {@link java.util.List#hashCode()} of the boxed items, put together from the hashes cached in the nodes.
+     */
+    @Override
+    public int hashCode() {
+        if (hashCache != null) return hashCache;
+
+        final var hash = root.quickHash() * PersistentList.powerOf31(tail.itemCount()) + tail.quickHash();
+        return hashCache = PersistentList.powerOf31(size()) + hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (obj instanceof PrimitivePersistentList<?, ?> other && getClass() == other.getClass()) {
+            if (root == other.root && tail == other.tail) return true;
+            if (size() != other.size()) return false;
+            if (hashCode() != other.hashCode()) return false;
+
+            final var leavesA = leafIterator();
+            final var leavesB = other.leafIterator();
+            PrimitiveTree.Leaf leafA = null;
+            PrimitiveTree.Leaf leafB = null;
+            var indexA = 0;
+            var indexB = 0;
+
+            for (int i = 0; i < size(); ++i) {
+                while (leafA == null || indexA == leafA.itemCount()) {
+                    leafA = leavesA.next();
+                    indexA = 0;
+                }
+                while (leafB == null || indexB == leafB.itemCount()) {
+                    leafB = leavesB.next();
+                    indexB = 0;
+                }
+
+                if (!leafA.sameItem(indexA++, leafB, indexB++)) return false;
+            }
+            return true;
+        } else return false;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("[ ");
+        boolean first = true;
+
+        for (final var item : this) {
+            if (!first) {
+                result.append(", ");
+            }
+
+            result.append(item);
+            first = false;
+        }
+        result.append(" ]");
+
+        return result.toString();
+    }
+
+    /**
+     * @return the leaf holding the item at index, root or tail. The index of the item inside that leaf is written to
+     * offset[0].
+     */
+    PrimitiveTree.Leaf leafAt(int index, int[] offset) {
+        PersistentList.indexCheck(index, size());
+
+        final var rootCount = root.itemCount();
+        if (index >= rootCount) {
+            offset[0] = index - rootCount;
+            return tail;
+        }
+
+        return PrimitiveTree.leafAt(root, index, offset);
+    }
+
+    /**
+     * @return the leaves of the root and then the tail.
+     */
+    PrimitiveTree.LeafIterator leafIterator() {
+        return new PrimitiveTree.LeafIterator(root, tail);
+    }
+
+    L withReplacement(int index, PrimitiveTree.Leaf value) {
+        PersistentList.indexCheck(index, size());
+
+        final var rootCount = root.itemCount();
+        if (index >= rootCount) return newList(root, tail.withItemFrom(index - rootCount, value, 0));
+
+        return newList(PrimitiveTree.withReplacement(root, index, value), tail);
+    }
+
+    L withInsertion(int index, PrimitiveTree.Leaf values) {
+        PersistentList.indexCheck(index, size() + 1);
+        if (values.itemCount() == 0) return (L) this;
+
+        final var rootCount = root.itemCount();
+        if (index < rootCount) return newList(PrimitiveTree.withInsertion(root, index, values), tail);
+
+        final var tailIndex = index - rootCount;
+        final var newTail = tail.slice(0, tailIndex)
+                .concatenated(values)
+                .concatenated(tail.slice(tailIndex, tail.itemCount()));
+
+        if (newTail.itemCount() <= PrimitiveTree.LEAF_SIZE) return withTail(newTail);
+
+        // more than a leaf's worth, it goes into the tree in leaf-sized pieces
+        return newList(PrimitiveTree.withInsertion(root, rootCount, newTail), emptyLeaf());
+    }
+
+    /**
+     * @return this list with its tail replaced by newTail, which is pushed into the tree if it's full.
+     */
+    L withTail(PrimitiveTree.Leaf newTail) {
+        if (newTail.itemCount() < PrimitiveTree.LEAF_SIZE) return newList(root, newTail);
+
+        return newList(PrimitiveTree.withLeafAppended(root, newTail), emptyLeaf());
+    }
+}
@@ -0,0 +1,271 @@
+import java.util.Iterator;
+
+/**
+ * Tree operations shared by {@link IntPersistentList}, {@link LongPersistentList} and {@link DoublePersistentList}, the
+ * rest of what they share is in {@link PrimitivePersistentList}. They build the same {@link PersistentList.Branch} nodes
+ * and use the same balancing as PersistentList, only the leaves store a primitive array instead of an Object[].
+ */
+final class PrimitiveTree {
+    static final int LEAF_SIZE = 32;
+
+    private PrimitiveTree() {
+    }
+
+    /**
+     * A leaf backed by a primitive array. Subclasses only need to know how to copy pieces of their own array around, the
+     * tree operations below do the rest.
+     */
+    abstract static class Leaf implements PersistentList.Node {
+        /**
+         * @return the items in [start, end) as a new leaf.
+         */
+        abstract Leaf slice(int start, int end);
+
+        /**
+         * @return a new leaf with this leaf's items followed by other's items. other must be the same type of leaf.
+         */
+        abstract Leaf concatenated(Leaf other);
+
+        /**
+         * @return a copy of this leaf with the item at index replaced by the item at srcIndex in src. src must be the same
+         * type of leaf.
+         */
+        abstract Leaf withItemFrom(int index, Leaf src, int srcIndex);
+
+        /**
+         * @return whether the item at index is the same as the item at otherIndex in other, which must be the same type
+         * of leaf.
+         */
+        abstract boolean sameItem(int index, Leaf other, int otherIndex);
+
+        public int leafCount() {
+            return 1;
+        }
+
+        public int weight() {
+            return itemCount() > 0 ? 1 : 0;
+        }
+
+        public int balanceFactor() {
+            return 0;
+        }
+
+        public int absoluteBalanceFactor() {
+            return 0;
+        }
+    }
+
+    /**
+     * Splits a leaf that might be bigger than {@link #LEAF_SIZE} into a balanced tree of leaves.
+     */
+    static PersistentList.Node fromLeaf(Leaf items) {
+        final var leafCount = (items.itemCount() + LEAF_SIZE - 1) / LEAF_SIZE;
+        if (leafCount <= 1) return items;
+
+        return fromLeaf(items, 0, leafCount);
+    }
+
+    private static PersistentList.Node fromLeaf(Leaf items, int leafIndex, int leafCount) {
+        if (leafCount == 1) {
+            final var start = leafIndex * LEAF_SIZE;
+            return items.slice(start, Math.min(start + LEAF_SIZE, items.itemCount()));
+        } else {
+            final var remainder = leafCount % 2;
+            final var leftCount = (leafCount / 2) + (remainder > 0 ? 1 : 0);
+            final var rightCount = leafCount / 2;
+
+            return PersistentList.branch(
+                    fromLeaf(items, leafIndex, leftCount),
+                    fromLeaf(items, leafIndex + leftCount, rightCount));
+        }
+    }
+
+    /**
+     * @return the leaf holding the item at index. The index of the item inside that leaf is written to offset[0].
+     */
+    static Leaf leafAt(PersistentList.Node n, int index, int[] offset) {
+        while (n instanceof PersistentList.Branch b) {
+            if (index < b.left.itemCount()) {
+                n = b.left;
+            } else {
+                index -= b.left.itemCount();
+                n = b.right;
+            }
+        }
+
+        offset[0] = index;
+        return (Leaf) n;
+    }
+
+    static PersistentList.Node withReplacement(PersistentList.Node n, int index, Leaf src) {
+        if (n instanceof PersistentList.Branch b) {
+            if (index < b.left.itemCount()) {
+                return PersistentList.branch(
+                        withReplacement(b.left, index, src),
+                        b.right);
+            } else {
+                return PersistentList.branch(
+                        b.left,
+                        withReplacement(b.right, index - b.left.itemCount(), src));
+            }
+        } else if (n instanceof Leaf l) {
+            return l.withItemFrom(index, src, 0);
+        } else {
+            throw new NullPointerException();
+        }
+    }
+
+    static PersistentList.Node withLeafAppended(PersistentList.Node n, Leaf leaf) {
+        if (n.itemCount() == 0) return leaf;
+
+        if (n instanceof PersistentList.Branch b) {
+            return PersistentList.shallowlyBalanced(
+                    PersistentList.branch(
+                            b.left,
+                            withLeafAppended(b.right, leaf)));
+        } else if (n instanceof Leaf l) {
+            return PersistentList.branch(l, leaf);
+        } else {
+            throw new NullPointerException();
+        }
+    }
+
+    static PersistentList.Node withInsertion(PersistentList.Node n, int index, Leaf values) {
+        if (n instanceof PersistentList.Branch b) {
+            if (index < b.left.itemCount()) {
+                return PersistentList.shallowlyBalanced(
+                        PersistentList.branch(
+                                withInsertion(b.left, index, values),
+                                b.right));
+            } else {
+                return PersistentList.shallowlyBalanced(
+                        PersistentList.branch(
+                                b.left,
+                                withInsertion(b.right, index - b.left.itemCount(), values)));
+            }
+        } else if (n instanceof Leaf l) {
+            return fromLeaf(
+                    l.slice(0, index)
+                            .concatenated(values)
+                            .concatenated(l.slice(index, l.itemCount())));
+        } else {
+            throw new NullPointerException();
+        }
+    }
+
+    static PersistentList.Node withoutRange(PersistentList.Node n, int start, int end) {
+        if (start == end) return n;
+
+        if (n instanceof PersistentList.Branch b) {
+            final var leftCount = b.left.itemCount();
+
+            if (start < leftCount) {
+                if (end > leftCount) {
+                    return prunedAndBalanced(
+                            withoutRange(b.left, start, leftCount),
+                            withoutRange(b.right, 0, end - leftCount));
+                } else {
+                    return prunedAndBalanced(
+                            withoutRange(b.left, start, end),
+                            b.right);
+                }
+            } else {
+                return prunedAndBalanced(
+                        b.left,
+                        withoutRange(b.right, start - leftCount, end - leftCount));
+            }
+        } else if (n instanceof Leaf l) {
+            return l.slice(0, start).concatenated(l.slice(end, l.itemCount()));
+        } else {
+            throw new NullPointerException();
+        }
+    }
+
+    static PersistentList.Node subListFrom(PersistentList.Node n, int start, int end) {
+        if (start == 0 && end == n.itemCount()) return n;
+
+        if (n instanceof PersistentList.Branch b) {
+            final var leftCount = b.left.itemCount();
+
+            if (end <= leftCount) {
+                return subListFrom(b.left, start, end);
+            } else if (start >= leftCount) {
+                return subListFrom(b.right, start - leftCount, end - leftCount);
+            } else {
+                return prunedAndBalanced(
+                        subListFrom(b.left, start, leftCount),
+                        subListFrom(b.right, 0, end - leftCount));
+            }
+        } else if (n instanceof Leaf l) {
+            return l.slice(start, end);
+        } else {
+            throw new NullPointerException();
+        }
+    }
+
+    /**
+     * Joins left and right under a new branch, unless one of them is empty, in which case the other is returned as is.
+     * Unlike PersistentList's pruning this never swaps in PersistentList's own (Object[]) empty leaf.
+     */
+    private static PersistentList.Node prunedAndBalanced(PersistentList.Node left, PersistentList.Node right) {
+        if (left.itemCount() == 0) return right;
+        if (right.itemCount() == 0) return left;
+
+        return PersistentList.shallowlyBalanced(PersistentList.branch(left, right));
+    }
+
+    /**
+     * Iterates through the leaves of a tree from left to right, and then through a trailing leaf if there is one. The nodes still to visit are kept in an array based stack
+     * since the depth of a balanced tree is small.
+     */
+    static class LeafIterator implements Iterator<Leaf> {
+        private PersistentList.Node[] path = new PersistentList.Node[16];
+        private int depth = 0;
+
+        LeafIterator(PersistentList.Node root) {
+            if (root.itemCount() > 0) moveDownFrom(root);
+        }
+
+        LeafIterator(PersistentList.Node root, Leaf last) {
+            // at the bottom of the stack so it comes after everything in root
+            if (last.itemCount() > 0) push(last);
+            if (root.itemCount() > 0) moveDownFrom(root);
+        }
+
+        public boolean hasNext() {
+            return depth > 0;
+        }
+
+        public Leaf next() {
+            if (depth == 0) return null;
+
+            final var result = (Leaf) path[--depth];
+
+            // the next node on the stack is the right side of the closest branch that was entered from the left
+            if (depth > 0) moveDownFrom(path[--depth]);
+
+            return result;
+        }
+
+        /**
+         * Pushes the right siblings of the leftmost path onto the stack in reverse, so the stack always holds the nodes
+         * that are left to visit with the next one on top.
+         */
+        private void moveDownFrom(PersistentList.Node node) {
+            while (node instanceof PersistentList.Branch b) {
+                push(b.right);
+                node = b.left;
+            }
+            push(node);
+        }
+
+        private void push(PersistentList.Node node) {
+            if (depth == path.length) {
+                final var newPath = new PersistentList.Node[path.length * 2];
+                System.arraycopy(path, 0, newPath, 0, path.length);
+                path = newPath;
+            }
+            path[depth++] = node;
+        }
+    }
+}
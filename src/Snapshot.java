@@ -0,0 +1,265 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary snapshots of PersistentList versions that keep their structural sharing. Every node is written once no matter
+ * how many of the versions share it and the reader links the versions back up to the same nodes, so N versions of a list
+ * cost about their unique nodes on disk and to load, not N times their size.
+ * <p>
+ * A snapshot is a header followed by records, ended by an {@link #END} record. A leaf record holds the items of a leaf
+ * (or of a list's head or tail), a branch record the ids of its two children and a version record the ids of a list's
+ * head, root and tail. Nodes get ids in the order they're written and are always written before anything that refers to
+ * them, so the reader can build everything in one pass.
+ */
+public final class Snapshot {
+    private static final int MAGIC = 0x504C534E; // "PLSN"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte END = 0;
+    private static final byte LEAF = 1;
+    private static final byte BRANCH = 2;
+    private static final byte VERSION = 3;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private Snapshot() {
+    }
+
+    public static <T> void write(Path file, Iterable<PersistentList<T>> versions, ItemCodec<T> codec) throws IOException {
+        try (final var writer = new Writer<>(file, codec)) {
+            for (final var version : versions) {
+                writer.add(version);
+            }
+        }
+    }
+
+    /**
+     * @return the versions in the order they were written. Nodes that were shared between them when they were written are
+     * shared again.
+     */
+    public static <T> List<PersistentList<T>> read(Path file, ItemCodec<T> codec) throws IOException {
+        try (final var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final var input = new Input(channel);
+
+            final var header = input.require(2 * Integer.BYTES);
+            if (header.getInt() != MAGIC) throw new IOException("not a PersistentList snapshot: " + file);
+            final var formatVersion = header.getInt();
+            if (formatVersion != FORMAT_VERSION) throw new IOException("unknown snapshot format version " + formatVersion);
+
+            final var nodes = new ArrayList<PersistentList.Node>();
+            final var result = new ArrayList<PersistentList<T>>();
+
+            while (true) {
+                final var kind = input.require(1).get();
+
+                switch (kind) {
+                    case END -> {
+                        return result;
+                    }
+                    case LEAF -> {
+                        final var sizes = input.require(2 * Integer.BYTES);
+                        final var byteLength = sizes.getInt();
+                        final var itemCount = sizes.getInt();
+
+                        final var buffer = input.require(byteLength);
+                        final var end = buffer.position() + byteLength;
+                        final var items = new Object[itemCount];
+                        for (int i = 0; i < itemCount; ++i) {
+                            items[i] = codec.read(buffer);
+                        }
+                        if (buffer.position() != end) throw new IOException("corrupt snapshot: leaf " + nodes.size() + " has the wrong length");
+
+                        nodes.add(PersistentList.leaf(items));
+                    }
+                    case BRANCH -> {
+                        final var ids = input.require(2 * Integer.BYTES);
+                        final var left = nodeAt(nodes, ids.getInt());
+                        final var right = nodeAt(nodes, ids.getInt());
+
+                        nodes.add(PersistentList.branch(left, right));
+                    }
+                    case VERSION -> {
+                        final var record = input.require(1 + 3 * Integer.BYTES);
+                        final var reversed = record.get() != 0;
+                        final var head = itemsAt(nodes, record.getInt());
+                        final var root = nodeAt(nodes, record.getInt());
+                        final var tail = itemsAt(nodes, record.getInt());
+
+                        result.add(PersistentList.fromStored(head, root, tail, reversed));
+                    }
+                    default -> throw new IOException("corrupt snapshot: unknown record " + kind);
+                }
+            }
+        }
+    }
+
+    private static PersistentList.Node nodeAt(List<PersistentList.Node> nodes, int id) throws IOException {
+        if (id < 0 || id >= nodes.size()) throw new IOException("corrupt snapshot: node " + id + " used before it's written");
+        return nodes.get(id);
+    }
+
+    private static Object[] itemsAt(List<PersistentList.Node> nodes, int id) throws IOException {
+        if (nodeAt(nodes, id) instanceof PersistentList.Leaf l) return l.items;
+        throw new IOException("corrupt snapshot: node " + id + " isn't a leaf");
+    }
+
+    /**
+     * Writes versions one at a time into a snapshot, remembering which nodes it has already written. Versions added to
+     * the same writer share their nodes in the snapshot, the ones added to different writers don't.
+     */
+    public static class Writer<T> implements Closeable {
+        private final FileChannel channel;
+        private final ItemCodec<T> codec;
+        /**
+         * The ids of the nodes and the head and tail arrays that were written so far.
+         */
+        private final Map<Object, Integer> ids = new IdentityHashMap<>();
+        private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private boolean closed = false;
+
+        public Writer(Path file, ItemCodec<T> codec) throws IOException {
+            this.channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            this.codec = codec;
+
+            buffer.putInt(MAGIC).putInt(FORMAT_VERSION);
+        }
+
+        public void add(PersistentList<T> version) throws IOException {
+            if (closed) throw new IllegalStateException("writer is closed");
+
+            final var headId = idOf(version.storedHead());
+            final var rootId = idOf(version.storedRoot());
+            final var tailId = idOf(version.storedTail());
+
+            reserve(2 + 3 * Integer.BYTES);
+            buffer.put(VERSION)
+                    .put((byte) (version.isReversed() ? 1 : 0))
+                    .putInt(headId)
+                    .putInt(rootId)
+                    .putInt(tailId);
+        }
+
+        /**
+         * Writes the end record and closes the file.
+         */
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+
+            try {
+                reserve(1);
+                buffer.put(END);
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+
+        /**
+         * @return the id of n, writing it and everything under it that wasn't written yet first.
+         */
+        private int idOf(PersistentList.Node n) throws IOException {
+            final var known = ids.get(n);
+            if (known != null) return known;
+
+            if (n instanceof PersistentList.Branch b) {
+                final var leftId = idOf(b.left);
+                final var rightId = idOf(b.right);
+
+                reserve(1 + 2 * Integer.BYTES);
+                buffer.put(BRANCH).putInt(leftId).putInt(rightId);
+            } else if (n instanceof PersistentList.Leaf l) {
+                writeLeaf(l.items);
+            } else {
+                throw new IllegalArgumentException("can't write " + n);
+            }
+
+            return newId(n);
+        }
+
+        private int idOf(Object[] items) throws IOException {
+            final var known = ids.get(items);
+            if (known != null) return known;
+
+            writeLeaf(items);
+            return newId(items);
+        }
+
+        private int newId(Object written) {
+            final var id = ids.size();
+            ids.put(written, id);
+            return id;
+        }
+
+        private void writeLeaf(Object[] items) throws IOException {
+            var byteLength = 0;
+            for (final var item : items) {
+                byteLength += codec.size((T) item);
+            }
+
+            reserve(1 + 2 * Integer.BYTES + byteLength);
+            buffer.put(LEAF).putInt(byteLength).putInt(items.length);
+            for (final var item : items) {
+                codec.write((T) item, buffer);
+            }
+        }
+
+        /**
+         * Makes room for a record of length bytes, flushing the buffer or growing it for records bigger than it.
+         */
+        private void reserve(int length) throws IOException {
+            if (buffer.remaining() >= length) return;
+
+            flush();
+            if (buffer.capacity() < length) buffer = ByteBuffer.allocate(length);
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Reads a channel through a buffer that's refilled whenever a record needs more bytes than it has left.
+     */
+    private static class Input {
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).limit(0);
+
+        Input(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * @return the buffer, with at least length bytes left to read.
+         */
+        ByteBuffer require(int length) throws IOException {
+            if (buffer.remaining() >= length) return buffer;
+
+            buffer.compact();
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(length).put(buffer.flip());
+            }
+
+            while (buffer.position() < length) {
+                if (channel.read(buffer) < 0) throw new EOFException("snapshot ends in the middle of a record");
+            }
+
+            return buffer.flip();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Differential checks: random sequences of operations are run on the persistent lists and on an ArrayList side by side,
+ * and every result has to match. They aren't timed, see Benchmarks for that.
+ * <p>
+ * The arguments are the names of the groups to run (lists, sorted, snapshots, mapped, primitives), all of them if there
+ * are none. Run it with assertions on so the library's own asserts are checked too. It's kept out of src like
+ * Benchmarks, compile it together with it:
+ * {@code javac -d out src/*.java test/*.java && java -ea -cp out Checks}.
+ */
+public class Checks {
+    public static void main(String[] args) throws Exception {
+        final var groups = args.length == 0 ? List.of("lists", "sorted", "snapshots", "mapped", "primitives") : List.of(args);
+
+        for (final var group : groups) {
+            final var start = System.nanoTime();
+
+            switch (group) {
+                case "lists" -> ListChecks.run();
+                case "sorted" -> SortedChecks.run();
+                case "snapshots" -> SnapshotChecks.run();
+                case "mapped" -> MappedChecks.run();
+                case "primitives" -> PrimitiveChecks.run();
+                default -> throw new IllegalArgumentException("unknown group " + group);
+            }
+
+            System.out.printf("%s ok (%d ms)%n", group, (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+
+    /**
+     * Checks that list has expected's items, by every way of reading them that doesn't change the list.
+     */
+    static <T> void checkItems(PersistentList<T> list, List<T> expected, String message) {
+        check(list.size() == expected.size(), message + ": size " + list.size() + " instead of " + expected.size());
+        check(list.toList().equals(expected), message + ": items");
+
+        final var iterated = new ArrayList<T>();
+        for (final var item : list) iterated.add(item);
+        check(iterated.equals(expected), message + ": iterator");
+
+        for (int i = 0; i < expected.size(); i += 1 + i / 8) {
+            check(Objects.equals(list.get(i), expected.get(i)), message + ": get " + i);
+        }
+
+        check(list.hashCode() == expected.hashCode(), message + ": hashCode");
+        check(list.equals(new PersistentList<>(expected)), message + ": equals");
+        check(new PersistentList<>(expected).equals(list), message + ": equals, swapped");
+    }
+
+    static <T> List<T> reversed(List<T> items) {
+        final var result = new ArrayList<>(items);
+        Collections.reverse(result);
+        return result;
+    }
+}
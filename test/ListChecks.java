@@ -0,0 +1,568 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PersistentList against ArrayList: edits, reversal, join and split, the transient, bulk operations, searching, diff and
+ * patch, cursors and readers. The whole thing is run with the default settings, with membership filters and with
+ * interning.
+ */
+class ListChecks extends Checks {
+    private static final int OPERATIONS = 20;
+
+    static void run() {
+        final var random = new Random(42);
+
+        editChecks(random, 120);
+        transientChecks(random);
+        dequeChecks(random);
+        joinChecks(random);
+        cursorChecks(random);
+        readerChecks(random);
+        bulkChecks(random);
+
+        PersistentList.setMembershipFilters(true);
+        try {
+            editChecks(random, 40);
+        } finally {
+            PersistentList.setMembershipFilters(false);
+        }
+
+        PersistentList.setInterning(true);
+        try {
+            editChecks(random, 40);
+            internChecks();
+        } finally {
+            PersistentList.setInterning(false);
+        }
+    }
+
+    /**
+     * Random edits on random lists, everything about the list is checked after each one.
+     */
+    private static void editChecks(Random random, int rounds) {
+        for (int round = 0; round < rounds; ++round) {
+            var expected = new ArrayList<Integer>();
+            final var initialSize = random.nextInt(300);
+            for (int i = 0; i < initialSize; ++i) expected.add(random.nextInt(1000));
+
+            var list = new PersistentList<>(expected);
+            var previous = list;
+            var previousExpected = new ArrayList<>(expected);
+
+            for (int step = 0; step < 100; ++step) {
+                final var operation = random.nextInt(OPERATIONS);
+                final var size = expected.size();
+
+                switch (operation) {
+                    case 0 -> {
+                        final var value = random.nextInt();
+                        list = list.add(value);
+                        expected.add(value);
+                    }
+                    case 1 -> {
+                        final var value = random.nextInt();
+                        list = list.push(value);
+                        expected.add(0, value);
+                    }
+                    case 2 -> {
+                        list = list.pull();
+                        if (size > 0) expected.remove(0);
+                    }
+                    case 3 -> {
+                        list = list.pop();
+                        if (size > 0) expected.remove(size - 1);
+                    }
+                    case 4 -> {
+                        if (size == 0) continue;
+                        final var index = random.nextInt(size);
+                        final var value = random.nextInt();
+                        list = list.set(index, value);
+                        expected.set(index, value);
+                    }
+                    case 5 -> {
+                        final var index = random.nextInt(size + 1);
+                        final var value = random.nextInt();
+                        list = list.add(index, value);
+                        expected.add(index, value);
+                    }
+                    case 6 -> {
+                        if (size == 0) continue;
+                        final var index = random.nextInt(size);
+                        final var length = random.nextInt(size - index) + 1;
+                        list = list.remove(index, length);
+                        expected.subList(index, index + length).clear();
+                    }
+                    case 7 -> {
+                        if (size == 0) continue;
+                        final var start = random.nextInt(size);
+                        final var length = random.nextInt(size - start) + 1;
+                        list = list.subList(start, length);
+                        expected = new ArrayList<>(expected.subList(start, start + length));
+                    }
+                    case 8 -> {
+                        final var index = random.nextInt(size + 1);
+                        final var values = randomItems(random, random.nextInt(70));
+                        list = list.insert(index, values);
+                        expected.addAll(index, Arrays.asList(values));
+                    }
+                    case 9 -> {
+                        // a list with a tail of its own, in either direction
+                        final var inserted = new ArrayList<>(Arrays.asList(randomItems(random, random.nextInt(100))));
+                        var insertedList = new PersistentList<>(inserted);
+                        for (int i = random.nextInt(40); i > 0; --i) {
+                            final var value = random.nextInt();
+                            insertedList = insertedList.add(value);
+                            inserted.add(value);
+                        }
+                        if (random.nextBoolean()) {
+                            insertedList = insertedList.reverse();
+                            Collections.reverse(inserted);
+                        }
+
+                        final var index = random.nextInt(size + 1);
+                        list = list.insert(index, insertedList);
+                        expected.addAll(index, inserted);
+                    }
+                    case 10, 11 -> {
+                        list = list.reverse();
+                        Collections.reverse(expected);
+                    }
+                    case 12 -> {
+                        list = list.sort(Comparator.naturalOrder());
+                        expected.sort(Comparator.naturalOrder());
+                    }
+                    case 13 -> {
+                        final var index = random.nextInt(size + 1);
+                        final var halves = list.splitAt(index);
+                        checkItems(halves.left, expected.subList(0, index), "splitAt left");
+                        checkItems(halves.right, expected.subList(index, size), "splitAt right");
+
+                        list = halves.right.concat(halves.left);
+                        final var rotated = new ArrayList<>(expected.subList(index, size));
+                        rotated.addAll(expected.subList(0, index));
+                        expected = rotated;
+                    }
+                    case 14 -> {
+                        list = list.concat(list);
+                        expected.addAll(new ArrayList<>(expected));
+                        if (expected.size() > 5000) {
+                            list = list.subList(0, 100);
+                            expected = new ArrayList<>(expected.subList(0, 100));
+                        }
+                    }
+                    case 15 -> {
+                        if (size == 0) continue;
+                        final var count = random.nextInt(60);
+                        final var indexes = new int[count];
+                        final var values = new Integer[count];
+                        for (int i = 0; i < count; ++i) {
+                            indexes[i] = random.nextInt(size);
+                            values[i] = random.nextInt(1000);
+                        }
+                        list = list.setAll(indexes, values);
+                        for (int i = 0; i < count; ++i) expected.set(indexes[i], values[i]);
+                    }
+                    case 16 -> {
+                        if (size == 0) continue;
+                        final var indexes = new int[random.nextInt(60)];
+                        for (int i = 0; i < indexes.length; ++i) indexes[i] = random.nextInt(size);
+                        list = list.updateAll(indexes, value -> value * 3 + 1);
+                        for (final var index : indexes) expected.set(index, expected.get(index) * 3 + 1);
+                    }
+                    case 17 -> {
+                        if (size == 0) continue;
+                        final var index = random.nextInt(size);
+                        final var values = randomItems(random, random.nextInt(size - index + 1));
+                        list = list.replaceRange(index, values);
+                        for (int i = 0; i < values.length; ++i) expected.set(index + i, values[i]);
+                    }
+                    case 18 -> {
+                        // edited through a transient of a list in either direction
+                        final var builder = list.transientCopy();
+                        for (int i = random.nextInt(50); i > 0; --i) {
+                            final var value = random.nextInt();
+                            if (expected.isEmpty() || random.nextBoolean()) {
+                                builder.add(value);
+                                expected.add(value);
+                            } else {
+                                final var index = random.nextInt(expected.size());
+                                builder.set(index, value);
+                                expected.set(index, value);
+                            }
+                        }
+                        list = builder.persistent();
+                    }
+                    case 19 -> {
+                        list = list.repeat(2);
+                        expected.addAll(new ArrayList<>(expected));
+                    }
+                }
+
+                final var name = "operation " + operation + " in round " + round;
+                checkList(list, expected, random, name);
+
+                final var diff = previous.diff(list);
+                check(previous.patch(diff).equals(list), name + ": patch");
+                check(new PersistentList<>(previousExpected).patch(diff).toList().equals(expected), name + ": patch on a copy");
+                check(previous.equals(list) == previousExpected.equals(expected), name + ": equals previous");
+                check(previous.equals(previous.reverse().reverse()), name + ": equals reversed twice");
+
+                previous = list;
+                previousExpected = new ArrayList<>(expected);
+            }
+        }
+    }
+
+    /**
+     * Everything that reads the list, on the list and on its reversed view.
+     */
+    private static void checkList(PersistentList<Integer> list, List<Integer> expected, Random random, String name) {
+        checkItems(list, expected, name);
+        checkItems(list.reverse(), reversed(expected), name + ", reversed");
+        check(list.reverse().equals(new PersistentList<>(reversed(expected))), name + ": reversed equals");
+
+        check(list.stream().toList().equals(expected), name + ": stream");
+        check(list.parallelStream().toList().equals(expected), name + ": parallelStream");
+        check(list.transientCopy().persistent().equals(list), name + ": transient copy");
+
+        for (int i = 0; i < 5; ++i) {
+            final var item = expected.isEmpty() || random.nextBoolean() ? random.nextInt(1000) : expected.get(random.nextInt(expected.size()));
+
+            final var firstIndex = expected.indexOf(item);
+            final var lastIndex = expected.lastIndexOf(item);
+            check(Objects.equals(list.indexOf(item), firstIndex < 0 ? null : firstIndex), name + ": indexOf");
+            check(Objects.equals(list.lastIndexOf(item), lastIndex < 0 ? null : lastIndex), name + ": lastIndexOf");
+            check(list.contains(item) == expected.contains(item), name + ": contains");
+
+            final var allIndexes = list.indexOfAll(item);
+            var found = 0;
+            for (int j = 0; j < expected.size(); ++j) {
+                if (expected.get(j).equals(item)) check(allIndexes.get(found++) == j, name + ": indexOfAll");
+            }
+            check(found == allIndexes.size(), name + ": indexOfAll size");
+        }
+    }
+
+    private static void transientChecks(Random random) {
+        for (int round = 0; round < 60; ++round) {
+            final var expected = new ArrayList<>(Arrays.asList(randomItems(random, random.nextInt(300))));
+            final var original = new ArrayList<>(expected);
+            var base = new PersistentList<>(expected);
+            if (random.nextBoolean()) {
+                base = base.reverse().reverse().push(1).pull();
+            }
+
+            final var builder = base.transientCopy();
+            for (int step = 0; step < 500; ++step) {
+                final var value = random.nextInt();
+                if (expected.isEmpty() || random.nextBoolean()) {
+                    builder.add(value);
+                    expected.add(value);
+                } else {
+                    final var index = random.nextInt(expected.size());
+                    builder.set(index, value);
+                    expected.set(index, value);
+                }
+
+                if (!expected.isEmpty()) {
+                    final var index = random.nextInt(expected.size());
+                    check(Objects.equals(builder.get(index), expected.get(index)), "transient get");
+                }
+            }
+
+            final var built = builder.persistent();
+            checkItems(built, expected, "transient");
+            checkItems(base, original, "transient leaves its base alone");
+            check(built.isSorted(Comparator.naturalOrder()) == isSorted(expected), "transient isSorted");
+            check(built.reverse().hashCode() == reversed(expected).hashCode(), "transient reversed hashCode");
+        }
+    }
+
+    private static void dequeChecks(Random random) {
+        for (int round = 0; round < 30; ++round) {
+            final var expected = new ArrayList<Integer>();
+            var list = new PersistentList<Integer>();
+
+            for (int step = 0; step < 3000; ++step) {
+                final var value = random.nextInt();
+
+                switch (random.nextInt(4)) {
+                    case 0 -> {
+                        list = list.push(value);
+                        expected.add(0, value);
+                    }
+                    case 1 -> {
+                        list = list.put(value);
+                        expected.add(value);
+                    }
+                    case 2 -> {
+                        list = list.pull();
+                        if (!expected.isEmpty()) expected.remove(0);
+                    }
+                    default -> {
+                        list = list.pop();
+                        if (!expected.isEmpty()) expected.remove(expected.size() - 1);
+                    }
+                }
+
+                if (step % 97 == 0) checkItems(list, expected, "deque");
+            }
+            checkItems(list, expected, "deque");
+        }
+    }
+
+    /**
+     * Big inserts, removes, splits and concatenations, checking that the tree stays as shallow as weight balancing
+     * promises.
+     */
+    private static void joinChecks(Random random) {
+        var list = new PersistentList<Integer>();
+        var expected = new ArrayList<Integer>();
+
+        for (int step = 0; step < 3000; ++step) {
+            final var size = expected.size();
+            final var operation = size < 1000 ? 0 : random.nextInt(4);
+
+            switch (operation) {
+                case 0 -> {
+                    final var values = randomItems(random, random.nextInt(5000));
+                    final var index = random.nextInt(size + 1);
+                    list = list.insert(index, new PersistentList<>(values));
+                    expected.addAll(index, Arrays.asList(values));
+                }
+                case 1 -> {
+                    final var index = random.nextInt(size);
+                    final var length = random.nextInt(Math.min(3000, size - index)) + 1;
+                    list = list.remove(index, length);
+                    expected.subList(index, index + length).clear();
+                }
+                case 2 -> {
+                    final var index = random.nextInt(size + 1);
+                    final var halves = list.splitAt(index);
+                    list = halves.right.concat(halves.left);
+                    final var rotated = new ArrayList<>(expected.subList(index, size));
+                    rotated.addAll(expected.subList(0, index));
+                    expected = rotated;
+                }
+                default -> {
+                    final var start = random.nextInt(size / 2);
+                    final var length = random.nextInt(size / 2);
+                    list = list.concat(list.subList(start, length));
+                    expected.addAll(new ArrayList<>(expected.subList(start, start + length)));
+                }
+            }
+
+            if (expected.size() > 200_000) {
+                list = list.subList(0, 100_000);
+                expected = new ArrayList<>(expected.subList(0, 100_000));
+            }
+
+            if (step % 100 == 0) {
+                final var root = list.storedRoot();
+                // neither side of a branch has more than 3/4 of its leaves
+                final var maxDepth = 2 + Math.log(Math.max(1, root.leafCount())) / Math.log(4.0 / 3.0);
+                check(depthOf(root) <= maxDepth, "join depth " + depthOf(root) + " with " + root.leafCount() + " leaves");
+            }
+        }
+        checkItems(list, expected, "join");
+    }
+
+    private static int depthOf(PersistentList.Node n) {
+        return n instanceof PersistentList.Branch b ? 1 + Math.max(depthOf(b.left), depthOf(b.right)) : 0;
+    }
+
+    private static void cursorChecks(Random random) {
+        for (int round = 0; round < 150; ++round) {
+            final var expected = new ArrayList<>(Arrays.asList(randomItems(random, random.nextInt(2000))));
+            var list = new PersistentList<>(expected);
+            for (int i = 0; i < 20; ++i) {
+                final var value = random.nextInt();
+                final var index = random.nextInt(expected.size() + 1);
+                list = list.add(index, value);
+                expected.add(index, value);
+                if (random.nextBoolean()) {
+                    list = list.push(value);
+                    expected.add(0, value);
+                }
+            }
+            if (random.nextBoolean()) {
+                list = list.reverse();
+                Collections.reverse(expected);
+            }
+
+            final var start = random.nextInt(expected.size() + 1);
+            final var cursor = list.cursor(start);
+            var iterator = expected.listIterator(start);
+
+            for (int step = 0; step < 500; ++step) {
+                switch (random.nextInt(4)) {
+                    case 0 -> {
+                        check(cursor.hasNext() == iterator.hasNext(), "cursor hasNext");
+                        if (iterator.hasNext()) check(Objects.equals(cursor.next(), iterator.next()), "cursor next");
+                    }
+                    case 1 -> {
+                        check(cursor.hasPrevious() == iterator.hasPrevious(), "cursor hasPrevious");
+                        if (iterator.hasPrevious()) check(Objects.equals(cursor.previous(), iterator.previous()), "cursor previous");
+                    }
+                    case 2 -> {
+                        for (final var item : cursor.nextChunk()) {
+                            check(Objects.equals(item, iterator.next()), "cursor nextChunk");
+                        }
+                    }
+                    default -> {
+                        final var chunk = cursor.previousChunk();
+                        for (int i = chunk.size() - 1; i >= 0; --i) {
+                            check(Objects.equals(chunk.get(i), iterator.previous()), "cursor previousChunk");
+                        }
+                    }
+                }
+                check(cursor.nextIndex() == iterator.nextIndex(), "cursor nextIndex");
+
+                if (random.nextInt(50) == 0) {
+                    final var index = random.nextInt(expected.size() + 1);
+                    cursor.seek(index);
+                    iterator = expected.listIterator(index);
+                }
+            }
+        }
+    }
+
+    private static void readerChecks(Random random) {
+        for (int round = 0; round < 150; ++round) {
+            var list = new PersistentList<Integer>();
+            final var expected = new ArrayList<Integer>();
+            for (int i = random.nextInt(3000); i > 0; --i) {
+                final var value = random.nextInt();
+                switch (random.nextInt(3)) {
+                    case 0 -> {
+                        list = list.add(value);
+                        expected.add(value);
+                    }
+                    case 1 -> {
+                        list = list.push(value);
+                        expected.add(0, value);
+                    }
+                    default -> {
+                        final var index = random.nextInt(expected.size() + 1);
+                        list = list.add(index, value);
+                        expected.add(index, value);
+                    }
+                }
+            }
+            if (random.nextBoolean()) {
+                list = list.reverse();
+                Collections.reverse(expected);
+            }
+
+            final var reader = list.reader();
+            var index = 0;
+            for (int i = 0; i < 2000 && !expected.isEmpty(); ++i) {
+                // mostly close to the last one, sometimes anywhere
+                index = random.nextInt(4) == 0
+                        ? random.nextInt(expected.size())
+                        : Math.floorMod(index + random.nextInt(80) - 40, expected.size());
+                check(Objects.equals(reader.get(index), expected.get(index)), "reader get " + index);
+            }
+
+            try {
+                reader.get(expected.size());
+                check(false, "reader get past the end");
+            } catch (IndexOutOfBoundsException ignored) {
+            }
+        }
+    }
+
+    /**
+     * map, filter, reduce and forEach, on lists big enough to be split between threads and on small ones, which don't use
+     * the common pool at all.
+     */
+    private static void bulkChecks(Random random) {
+        for (final var size : new int[]{0, 3, 100, 300_000}) {
+            final var list = new PersistentList<>(randomItems(random, size)).push(5).add(6).reverse().push(7);
+            final var expected = list.toList();
+
+            checkItems(list.map(value -> value * 2), expected.stream().map(value -> value * 2).toList(), "map");
+
+            final var filtered = list.filter(value -> value % 7 != 0);
+            checkItems(filtered, expected.stream().filter(value -> value % 7 != 0).toList(), "filter");
+            check(filtered.filter(value -> value % 7 != 0) == filtered, "filter that keeps everything");
+
+            final long sum = list.reduce(0L, (total, value) -> total + value, Long::sum);
+            check(sum == expected.stream().mapToLong(value -> value).sum(), "reduce");
+
+            final var prefix = Math.min(20_000, expected.size());
+            final var letters = new StringBuilder();
+            for (final var value : expected.subList(0, prefix)) letters.append((char) ('a' + Math.floorMod(value, 26)));
+            final var reduced = list.subList(0, prefix).reduce("", (text, value) -> text + (char) ('a' + Math.floorMod(value, 26)), String::concat);
+            check(reduced.equals(letters.toString()), "reduce keeps the order");
+
+            final var seen = new ArrayList<Integer>();
+            list.forEach(seen::add);
+            check(seen.equals(expected), "forEach");
+
+            final var total = new LongAdder();
+            list.parallelForEach(total::add);
+            check(total.sum() == sum, "parallelForEach");
+
+            // under PersistentList.PARALLEL_THRESHOLD items nothing is handed to the common pool
+            if (size < 8192) {
+                final var caller = Thread.currentThread();
+                final var threads = ConcurrentHashMap.<Thread>newKeySet();
+                list.map(value -> threads.add(Thread.currentThread()));
+                list.filter(value -> threads.add(Thread.currentThread()));
+                list.reduce(0, (count, value) -> {
+                    threads.add(Thread.currentThread());
+                    return count;
+                }, Integer::sum);
+                list.parallelForEach(value -> threads.add(Thread.currentThread()));
+                list.topK(2, (a, b) -> {
+                    threads.add(Thread.currentThread());
+                    return Integer.compare(a, b);
+                });
+                check(threads.isEmpty() || threads.equals(Set.of(caller)), "small lists stay on the calling thread");
+            }
+        }
+    }
+
+    private static void internChecks() {
+        final var items = new Integer[100_000];
+        for (int i = 0; i < items.length; ++i) items[i] = i % 1000;
+
+        final var first = new PersistentList<>(items);
+        final var second = new PersistentList<>(items.clone());
+        check(first.storedRoot() == second.storedRoot(), "equal lists share their interned nodes");
+        check(first.set(500, 7).storedRoot() == second.set(500, 7).storedRoot(), "equal edits share their interned nodes");
+
+        PersistentList.setInterning(false);
+        final var uninterned = new PersistentList<>(items);
+        PersistentList.setInterning(true);
+        check(uninterned.interned().storedRoot() == first.storedRoot(), "interned()");
+
+        // a mutable item keeps its identity
+        final var mutable = new ArrayList<Integer>();
+        final var holder = new PersistentList<>(List.of(mutable));
+        final var other = new PersistentList<>(List.of(new ArrayList<Integer>()));
+        check(holder.get(0) == mutable && other.get(0) != mutable, "mutable items aren't interned");
+    }
+
+    private static Integer[] randomItems(Random random, int count) {
+        final var result = new Integer[count];
+        for (int i = 0; i < count; ++i) result[i] = random.nextInt(1000);
+        return result;
+    }
+
+    private static boolean isSorted(List<Integer> items) {
+        for (int i = 1; i < items.size(); ++i) {
+            if (items.get(i - 1) > items.get(i)) return false;
+        }
+        return true;
+    }
+}
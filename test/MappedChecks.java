@@ -0,0 +1,155 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * MappedPersistentList against ArrayList, on files written from random strings and from a range of ints that's bigger
+ * than the write buffer.
+ */
+class MappedChecks extends Checks {
+    static void run() throws Exception {
+        final var random = new Random(7);
+        final var file = Files.createTempFile("mapped", ".bin");
+
+        try {
+            editChecks(random, file);
+            paddingChecks(file);
+            appendChecks(file);
+            bigFileChecks(random, file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void editChecks(Random random, Path file) throws Exception {
+        for (int round = 0; round < 40; ++round) {
+            var expected = new ArrayList<String>();
+            for (int i = random.nextInt(round == 0 ? 1 : 3000); i > 0; --i) {
+                expected.add(random.nextInt(10) == 0 ? null : "s" + random.nextInt(100_000));
+            }
+
+            MappedPersistentList.write(file, expected, ItemCodec.STRINGS);
+            var list = MappedPersistentList.open(file, ItemCodec.STRINGS);
+            final var original = list;
+            final var originalExpected = new ArrayList<>(expected);
+
+            for (int step = 0; step < 300; ++step) {
+                final var size = expected.size();
+                final var operation = random.nextInt(6);
+
+                switch (operation) {
+                    case 0 -> {
+                        list = list.add("a" + step);
+                        expected.add("a" + step);
+                    }
+                    case 1 -> {
+                        if (size == 0) continue;
+                        final var index = random.nextInt(size);
+                        list = list.set(index, "x" + step);
+                        expected.set(index, "x" + step);
+                    }
+                    case 2 -> {
+                        final var index = random.nextInt(size + 1);
+                        final var values = new String[random.nextInt(70)];
+                        for (int i = 0; i < values.length; ++i) values[i] = "i" + i;
+                        list = list.insert(index, values);
+                        expected.addAll(index, Arrays.asList(values));
+                    }
+                    case 3 -> {
+                        if (size == 0) continue;
+                        final var index = random.nextInt(size);
+                        final var length = random.nextInt(Math.min(20, size - index)) + 1;
+                        list = list.remove(index, length);
+                        expected.subList(index, index + length).clear();
+                    }
+                    case 4 -> {
+                        if (size <= 10 || random.nextInt(5) != 0) continue;
+                        final var start = random.nextInt(size / 2);
+                        list = list.subList(start, size / 2);
+                        expected = new ArrayList<>(expected.subList(start, start + size / 2));
+                    }
+                    default -> {
+                        final var index = random.nextInt(size + 1);
+                        list = list.add(index, "y");
+                        expected.add(index, "y");
+                    }
+                }
+
+                final var name = "mapped operation " + operation;
+                check(list.size() == expected.size(), name + ": size");
+                for (int i = 0; i < 20 && !expected.isEmpty(); ++i) {
+                    final var index = random.nextInt(expected.size());
+                    check(Objects.equals(list.get(index), expected.get(index)), name + ": get " + index);
+                }
+                if (step % 25 == 0) checkMapped(list, expected, name);
+            }
+
+            checkMapped(original, originalExpected, "mapped versions leave the file's list alone");
+        }
+    }
+
+    /**
+     * The offset table starts at a multiple of 8, after up to 7 bytes of padding. The first item leaves 3 bytes in the
+     * write buffer, so the second one is flushed at a position that isn't a multiple of 8 and fills the buffer up to a few
+     * bytes before its end, which the padding has to fit into.
+     */
+    private static void paddingChecks(Path file) throws Exception {
+        final var first = "a".repeat(65_505);
+
+        for (int length = 65_520; length <= 65_532; ++length) {
+            final var items = List.of(first, "b".repeat(length), "c");
+            MappedPersistentList.write(file, items.subList(0, 2), ItemCodec.STRINGS);
+            checkMapped(MappedPersistentList.open(file, ItemCodec.STRINGS), items.subList(0, 2), "mapped padding " + length);
+
+            MappedPersistentList.write(file, items, ItemCodec.STRINGS);
+            checkMapped(MappedPersistentList.open(file, ItemCodec.STRINGS), items, "mapped padding " + length + " and a small item");
+        }
+    }
+
+    /**
+     * Appending one at a time has to fill up leaves, not make a node per item.
+     */
+    private static void appendChecks(Path file) throws Exception {
+        MappedPersistentList.write(file, List.of(), ItemCodec.STRINGS);
+        var list = MappedPersistentList.open(file, ItemCodec.STRINGS);
+        final var expected = new ArrayList<String>();
+        for (int i = 0; i < 10_000; ++i) {
+            list = list.add("z" + i);
+            expected.add("z" + i);
+        }
+
+        checkMapped(list, expected, "mapped appends");
+    }
+
+    private static void bigFileChecks(Random random, Path file) throws Exception {
+        final var size = 1_000_000;
+        MappedPersistentList.write(file, () -> IntStream.range(0, size).boxed().iterator(), ItemCodec.INTEGERS);
+
+        var list = MappedPersistentList.open(file, ItemCodec.INTEGERS);
+        check(list.size() == size, "big mapped size");
+        for (int i = 0; i < 10_000; ++i) {
+            final var index = random.nextInt(size);
+            check(list.get(index) == index, "big mapped get " + index);
+        }
+
+        for (int i = 0; i < 2_000; ++i) {
+            final var index = random.nextInt(size);
+            list = list.set(index, -index);
+            check(list.get(index) == -index, "big mapped set " + index);
+        }
+    }
+
+    private static void checkMapped(MappedPersistentList<String> list, List<String> expected, String message) {
+        final var iterated = new ArrayList<String>();
+        for (final var item : list) iterated.add(item);
+
+        check(iterated.equals(expected), message + ": iterator");
+        check(list.hashCode() == expected.hashCode(), message + ": hashCode");
+        check(list.toPersistentList().toList().equals(expected), message + ": toPersistentList");
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * IntPersistentList, LongPersistentList and DoublePersistentList against a boxed ArrayList, with the same edits on all
+ * three, with and without interning.
+ */
+class PrimitiveChecks extends Checks {
+    static void run() {
+        final var random = new Random(7);
+        editChecks(random, 300);
+
+        // PrimitiveTree's branches go through the interner like PersistentList's do
+        PersistentList.setInterning(true);
+        try {
+            editChecks(random, 100);
+        } finally {
+            PersistentList.setInterning(false);
+        }
+    }
+
+    private static void editChecks(Random random, int rounds) {
+        for (int round = 0; round < rounds; ++round) {
+            var ints = new IntPersistentList();
+            var longs = new LongPersistentList();
+            var doubles = new DoublePersistentList();
+            var expected = new ArrayList<Integer>();
+
+            for (int step = random.nextInt(600); step > 0; --step) {
+                final var size = expected.size();
+                final var operation = random.nextInt(10);
+                final var value = random.nextInt(1000);
+
+                if (operation < 4) {
+                    ints = ints.add(value);
+                    longs = longs.add(value);
+                    doubles = doubles.add(value);
+                    expected.add(value);
+                } else if (operation == 4) {
+                    final var index = random.nextInt(size + 1);
+                    ints = ints.add(index, value);
+                    longs = longs.add(index, value);
+                    doubles = doubles.add(index, value);
+                    expected.add(index, value);
+                } else if (operation == 5) {
+                    final var count = random.nextInt(70);
+                    final var index = random.nextInt(size + 1);
+                    ints = ints.insert(index, countingUpTo(count));
+                    longs = longs.insert(index, Arrays.stream(countingUpTo(count)).asLongStream().toArray());
+                    doubles = doubles.insert(index, Arrays.stream(countingUpTo(count)).asDoubleStream().toArray());
+                    for (int i = count - 1; i >= 0; --i) expected.add(index, i);
+                } else if (operation == 6 && size > 0) {
+                    final var index = random.nextInt(size);
+                    final var length = 1 + random.nextInt(Math.min(50, size - index));
+                    ints = ints.remove(index, length);
+                    longs = longs.remove(index, length);
+                    doubles = doubles.remove(index, length);
+                    expected.subList(index, index + length).clear();
+                } else if (operation == 7 && size > 0) {
+                    final var index = random.nextInt(size);
+                    ints = ints.set(index, value);
+                    longs = longs.set(index, value);
+                    doubles = doubles.set(index, value);
+                    expected.set(index, value);
+                } else if (operation == 8 && size > 0) {
+                    final var start = random.nextInt(size);
+                    final var length = random.nextInt(size - start + 1);
+                    ints = ints.subList(start, length);
+                    longs = longs.subList(start, length);
+                    doubles = doubles.subList(start, length);
+                    expected = new ArrayList<>(expected.subList(start, start + length));
+                } else {
+                    final var values = new int[random.nextInt(40)];
+                    Arrays.fill(values, 3);
+                    ints = ints.concat(values);
+                    longs = longs.concat(Arrays.stream(values).asLongStream().toArray());
+                    doubles = doubles.concat(Arrays.stream(values).asDoubleStream().toArray());
+                    for (final var item : values) expected.add(item);
+                }
+            }
+
+            check(ints.size() == expected.size() && longs.size() == expected.size() && doubles.size() == expected.size(), "primitive size");
+            for (int i = 0; i < expected.size(); ++i) {
+                final int item = expected.get(i);
+                check(ints.get(i) == item && longs.get(i) == item && doubles.get(i) == item, "primitive get " + i);
+            }
+
+            check(Arrays.equals(ints.toArray(), expected.stream().mapToInt(item -> item).toArray()), "int toArray");
+            check(Arrays.equals(longs.toArray(), expected.stream().mapToLong(item -> item).toArray()), "long toArray");
+
+            final var iterated = new ArrayList<Integer>();
+            ints.forEach(iterated::add);
+            check(iterated.equals(expected), "int iterator");
+
+            check(ints.hashCode() == expected.hashCode(), "int hashCode");
+            check(longs.hashCode() == expected.stream().map(Integer::longValue).toList().hashCode(), "long hashCode");
+            check(doubles.hashCode() == expected.stream().map(Integer::doubleValue).toList().hashCode(), "double hashCode");
+
+            final var copy = new IntPersistentList(expected.stream().mapToInt(item -> item).toArray());
+            check(copy.equals(ints) && ints.equals(copy) && copy.toString().equals(ints.toString()), "int equals");
+            check(!ints.equals(longs), "lists of different types aren't equal");
+
+            check(ints.sum() == expected.stream().mapToLong(item -> item).sum(), "int sum");
+            check(longs.sum() == expected.stream().mapToLong(item -> item).sum(), "long sum");
+            if (!expected.isEmpty()) {
+                check(ints.min().getAsInt() == Collections.min(expected), "int min");
+                check(longs.max().getAsLong() == Collections.max(expected), "long max");
+                check(doubles.max().getAsDouble() == Collections.max(expected), "double max");
+                check(!ints.set(0, -5).equals(ints), "int set changes equality");
+            }
+        }
+    }
+
+    /**
+     * 0 to count - 1.
+     */
+    private static int[] countingUpTo(int count) {
+        final var result = new int[count];
+        for (int i = 0; i < count; ++i) result[i] = i;
+        return result;
+    }
+}
@@ -0,0 +1,72 @@
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Snapshots written and read back: every version has its items again and the versions share as many nodes as they did
+ * before.
+ */
+class SnapshotChecks extends Checks {
+    static void run() throws Exception {
+        final var random = new Random(4);
+        final var file = Files.createTempFile("snapshot", ".bin");
+
+        try {
+            final var items = new Integer[100_000];
+            for (int i = 0; i < items.length; ++i) items[i] = random.nextInt();
+
+            var list = new PersistentList<>(items);
+            final var versions = new ArrayList<PersistentList<Integer>>();
+            for (int version = 0; version < 300; ++version) {
+                switch (random.nextInt(4)) {
+                    case 0 -> list = list.set(random.nextInt(list.size()), version);
+                    case 1 -> list = list.add(version);
+                    case 2 -> list = list.push(version);
+                    default -> list = list.insert(random.nextInt(list.size()), new Integer[]{version, version});
+                }
+                if (version % 50 == 7) list = list.reverse();
+
+                versions.add(list);
+            }
+            versions.add(new PersistentList<>());
+
+            Snapshot.write(file, versions, ItemCodec.INTEGERS);
+            final var read = Snapshot.read(file, ItemCodec.INTEGERS);
+
+            check(read.size() == versions.size(), "snapshot version count");
+            // before anything calls equals, which lets equal lists swap their nodes
+            check(nodeCount(read) == nodeCount(versions), "snapshot keeps the sharing between versions");
+            for (int i = 0; i < versions.size(); ++i) {
+                checkItems(read.get(i), versions.get(i).toList(), "snapshot version " + i);
+            }
+
+            final var strings = List.of(new PersistentList<>(new String[]{"a", null, "\u00fc"}));
+            Snapshot.write(file, strings, ItemCodec.STRINGS);
+            check(Snapshot.read(file, ItemCodec.STRINGS).get(0).toList().equals(Arrays.asList("a", null, "\u00fc")), "snapshot of strings");
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static int nodeCount(List<PersistentList<Integer>> versions) {
+        final Set<PersistentList.Node> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (final var version : versions) {
+            collectNodes(version.storedRoot(), seen);
+        }
+        return seen.size();
+    }
+
+    private static void collectNodes(PersistentList.Node n, Set<PersistentList.Node> seen) {
+        if (!seen.add(n)) return;
+
+        if (n instanceof PersistentList.Branch b) {
+            collectNodes(b.left, seen);
+            collectNodes(b.right, seen);
+        }
+    }
+}
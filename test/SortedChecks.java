@@ -0,0 +1,224 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sorting, isSorted, the operations on sorted lists and selection against sorting an ArrayList. Items are compared by
+ * key only and carry a tag, so the order of equal items is checked too where it's promised.
+ */
+class SortedChecks extends Checks {
+    record Item(int key, int tag) {
+    }
+
+    private static final Comparator<Item> BY_KEY = Comparator.comparingInt(Item::key);
+    private static final Comparator<Integer> NATURAL = Comparator.naturalOrder();
+
+    static void run() {
+        final var random = new Random(5);
+
+        sortChecks(random);
+        isSortedChecks(random);
+        sortedOperationChecks(random);
+        selectionChecks(random);
+    }
+
+    private static void sortChecks(Random random) {
+        for (final var size : new int[]{0, 1, 5, 100, 9000, 50_000, 300_000}) {
+            final var items = new ArrayList<Item>();
+            for (int i = 0; i < size; ++i) items.add(new Item(random.nextInt(1000), i));
+
+            final var list = new PersistentList<>(items);
+            final var sorted = list.sort(BY_KEY);
+            final var parallelSorted = list.parallelSort(BY_KEY);
+
+            final var expected = new ArrayList<>(items);
+            expected.sort(BY_KEY);
+            check(keysOf(sorted.toList()).equals(keysOf(expected)), "sort " + size);
+            check(keysOf(parallelSorted.toList()).equals(keysOf(expected)), "parallelSort " + size);
+            check(sorted.isSorted(BY_KEY) && parallelSorted.isSorted(BY_KEY), "sorted lists know they're sorted");
+            check(keysOf(list.reverse().sort(BY_KEY).toList()).equals(keysOf(expected)), "sort reversed " + size);
+        }
+    }
+
+    private static void isSortedChecks(Random random) {
+        for (int round = 0; round < 150; ++round) {
+            var expected = new ArrayList<Integer>();
+            for (int i = random.nextInt(2000); i > 0; --i) expected.add(random.nextInt(50));
+
+            var list = new PersistentList<>(expected);
+            if (random.nextBoolean()) {
+                list = list.sort(NATURAL);
+                expected.sort(NATURAL);
+            }
+
+            for (int step = 0; step < 60; ++step) {
+                final var operation = random.nextInt(7);
+
+                switch (operation) {
+                    case 0 -> {
+                        if (expected.isEmpty()) continue;
+                        final var index = random.nextInt(expected.size());
+                        final var value = random.nextInt(50);
+                        list = list.set(index, value);
+                        expected.set(index, value);
+                    }
+                    case 1 -> {
+                        final var value = expected.isEmpty() ? 0 : expected.get(expected.size() - 1) + random.nextInt(2);
+                        list = list.add(value);
+                        expected.add(value);
+                    }
+                    case 2 -> {
+                        final var value = expected.isEmpty() ? 0 : expected.get(0) - random.nextInt(2);
+                        list = list.push(value);
+                        expected.add(0, value);
+                    }
+                    case 3 -> {
+                        list = list.sort(NATURAL);
+                        expected.sort(NATURAL);
+                    }
+                    case 4 -> {
+                        list = list.concat(list);
+                        expected.addAll(new ArrayList<>(expected));
+                        if (expected.size() > 8000) {
+                            list = list.subList(0, 100);
+                            expected = new ArrayList<>(expected.subList(0, 100));
+                        }
+                    }
+                    case 5 -> {
+                        list = list.reverse();
+                        Collections.reverse(expected);
+                    }
+                    default -> {
+                        list = list.parallelSort(NATURAL);
+                        expected.sort(NATURAL);
+                    }
+                }
+
+                final var name = "isSorted after operation " + operation;
+                check(list.toList().equals(expected), name + ": items");
+                check(list.isSorted(NATURAL) == isSorted(expected, NATURAL), name);
+                check(list.isSorted(NATURAL.reversed()) == isSorted(expected, NATURAL.reversed()), name + ", descending");
+            }
+        }
+    }
+
+    /**
+     * binarySearch, insertSorted, removeSorted, range and mergeSorted, on lists that are stored forwards and on ones that
+     * are stored backwards and reversed.
+     */
+    private static void sortedOperationChecks(Random random) {
+        for (int round = 0; round < 200; ++round) {
+            final var range = 1 + random.nextInt(500);
+            final var expected = new ArrayList<Item>();
+            for (int i = random.nextInt(3000); i > 0; --i) expected.add(new Item(random.nextInt(range), 0));
+            expected.sort(BY_KEY);
+
+            var list = new PersistentList<>(expected);
+            switch (random.nextInt(4)) {
+                case 0 -> list = list.sort(BY_KEY);
+                case 1 -> list = new PersistentList<>(reversed(expected)).reverse();
+                case 2 -> {
+                    if (expected.isEmpty()) break;
+                    list = list.pull().push(expected.get(0)).pop().add(expected.get(expected.size() - 1));
+                }
+                default -> {
+                }
+            }
+
+            for (int query = 0; query < 20; ++query) {
+                final var key = new Item(random.nextInt(range + 2) - 1, 9);
+
+                var low = 0;
+                while (low < expected.size() && expected.get(low).key() < key.key()) ++low;
+                var high = low;
+                while (high < expected.size() && expected.get(high).key() == key.key()) ++high;
+
+                check(list.binarySearch(key, BY_KEY) == (high > low ? low : -low - 1), "binarySearch");
+
+                final var inserted = new ArrayList<>(expected);
+                inserted.add(high, key);
+                check(list.insertSorted(key, BY_KEY).toList().equals(inserted), "insertSorted");
+
+                final var removed = new ArrayList<>(expected);
+                if (high > low) removed.remove(low);
+                check(list.removeSorted(key, BY_KEY).toList().equals(removed), "removeSorted");
+
+                final var to = new Item(key.key() + random.nextInt(50) - 10, 0);
+                final var inRange = new ArrayList<Item>();
+                for (final var item : expected) {
+                    if (item.key() >= key.key() && item.key() < to.key()) inRange.add(item);
+                }
+                check(list.range(key, to, BY_KEY).toList().equals(inRange), "range");
+            }
+
+            final var otherItems = new ArrayList<Item>();
+            final var offset = random.nextInt(range * 2) - range / 2;
+            final var otherRange = 1 + random.nextInt(range);
+            for (int i = random.nextInt(3000); i > 0; --i) otherItems.add(new Item(offset + random.nextInt(otherRange), 1));
+            otherItems.sort(BY_KEY);
+
+            var other = new PersistentList<>(otherItems);
+            if (random.nextBoolean()) other = new PersistentList<>(reversed(otherItems)).reverse();
+
+            // a stable sort keeps the items of this list before the equal ones of other
+            final var merged = new ArrayList<>(expected);
+            merged.addAll(otherItems);
+            merged.sort(BY_KEY);
+
+            final var result = list.mergeSorted(other, BY_KEY);
+            check(result.toList().equals(merged), "mergeSorted");
+            check(result.isSorted(BY_KEY), "mergeSorted result is sorted");
+        }
+    }
+
+    /**
+     * sortedPrefix, topK and nthElement, which keep equal items in the order they have in the list.
+     */
+    private static void selectionChecks(Random random) {
+        for (int round = 0; round < 150; ++round) {
+            final var size = random.nextInt(round < 10 ? 40_000 : 3000);
+            final var range = 1 + random.nextInt(1000);
+            final var items = new ArrayList<Item>();
+            for (int i = 0; i < size; ++i) items.add(new Item(random.nextInt(range), i));
+
+            var list = new PersistentList<>(items);
+            if (random.nextInt(3) == 0) list = list.sort(BY_KEY);
+            if (random.nextInt(3) == 0) list = list.reverse();
+            if (random.nextInt(3) == 0 && size > 0) list = list.push(new Item(5, -1)).add(new Item(7, -2));
+
+            final var expected = list.toList();
+            final var ascending = new ArrayList<>(expected);
+            ascending.sort(BY_KEY);
+            final var descending = new ArrayList<>(expected);
+            descending.sort(BY_KEY.reversed());
+
+            for (int query = 0; query < 5; ++query) {
+                final var k = random.nextInt(expected.size() + 2) - 1;
+                final var kept = Math.max(0, Math.min(k, expected.size()));
+
+                final var prefix = list.sortedPrefix(k, BY_KEY);
+                check(prefix.toList().equals(ascending.subList(0, kept)), "sortedPrefix " + k);
+                check(prefix.isSorted(BY_KEY), "sortedPrefix is sorted");
+                check(list.topK(k, BY_KEY).toList().equals(descending.subList(0, kept)), "topK " + k);
+
+                if (!expected.isEmpty()) {
+                    final var n = random.nextInt(expected.size());
+                    check(list.nthElement(n, BY_KEY).equals(ascending.get(n)), "nthElement " + n);
+                }
+            }
+        }
+    }
+
+    private static List<Integer> keysOf(List<Item> items) {
+        return items.stream().map(Item::key).toList();
+    }
+
+    private static <T> boolean isSorted(List<T> items, Comparator<T> comparator) {
+        for (int i = 1; i < items.size(); ++i) {
+            if (comparator.compare(items.get(i - 1), items.get(i)) > 0) return false;
+        }
+        return true;
+    }
+}